@@ -0,0 +1,37 @@
+package com.hmdp.config;
+
+import cn.hutool.core.util.StrUtil;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+/**
+ *  Lettuce异步连接配置类
+ *  异步秒杀接口用它直接发送异步命令，所有请求复用这一个连接（Lettuce连接是线程安全的，命令在连接上流水线发送）
+ */
+@Configuration
+public class LettuceAsyncConfig {
+
+    @Bean(destroyMethod = "shutdown")
+    public RedisClient asyncRedisClient(RedisProperties properties){
+        RedisURI.Builder builder = RedisURI.builder()
+                .withHost(properties.getHost())
+                .withPort(properties.getPort())
+                .withDatabase(properties.getDatabase())
+                .withTimeout(properties.getTimeout() == null ? Duration.ofSeconds(60) : properties.getTimeout());
+        if(StrUtil.isNotBlank(properties.getPassword())){
+            builder.withPassword(properties.getPassword().toCharArray());
+        }
+        return RedisClient.create(builder.build());
+    }
+
+    @Bean(destroyMethod = "close")
+    public StatefulRedisConnection<String, String> asyncRedisConnection(RedisClient asyncRedisClient){
+        return asyncRedisClient.connect();
+    }
+}
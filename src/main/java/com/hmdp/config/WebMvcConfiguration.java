@@ -29,7 +29,10 @@ public class WebMvcConfiguration implements WebMvcConfigurer {
                         "/shop/**",
                         "/upload/**",
                         "/voucher/**",
-                        "/voucher-order/**"
+                        "/voucher-order/**",
+                        //监控端点只在本机的管理端口上暴露（management.server）
+                        "/actuator/health",
+                        "/actuator/prometheus"
                 ).order(1);
         //默认拦截路径就是/**，这里显示写出来。若不指定order，默认order都是0，拦截器顺序就按添加顺序来。
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
@@ -12,11 +12,38 @@ public class RedisConstants {
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     
     public static final String CACHE_SHOE_TYPE_KEY = CACHE_SHOP_KEY + "type";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:channel:invalidate";
+
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    public static final Long CACHE_VOUCHER_TTL = 30L;
+    public static final String CACHE_VOUCHER_SHOP_KEY = "cache:voucher:shop:";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_BUYERS_KEY = "seckill:buyers:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_QUEUE_KEY = "seckill:queue:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:channel:soldout";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:channel:restock";
+    public static final String SECKILL_STOCK_CHANNEL = "seckill:channel:stock:";
+    public static final String LOCK_SECKILL_RECONCILE_KEY = "lock:seckill:reconcile";
+    public static final String LOCK_PURCHASER_MIGRATE_KEY = "lock:seckill:purchaser-migrate";
+    public static final String LOCK_SECKILL_PREHEAT_KEY = "lock:seckill:preheat";
+    public static final String LOCK_STREAM_TRIM_KEY = "lock:seckill:stream-trim";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final String ORDER_TIMEOUT_KEY = "order:timeout";
+    public static final String STREAM_ORDERS_KEY = "stream.orders";
+    public static final String STREAM_ORDERS_GROUP = "g1";
+    public static final String STREAM_ORDERS_DLQ_KEY = "stream.orders.dlq";
+    public static final String STREAM_ARCHIVE_OWNER_KEY = "stream.orders:archive:owner";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_LAST_KEY = "id:worker:last:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -9,4 +9,8 @@ public class SystemConstants {
     //session_key
     public static final  String SESSION_KEY_USER = "user";
     public static final  String SESSION_KEY_CODE = "code";
+
+    //订单状态：未支付、已取消
+    public static final int ORDER_STATUS_UNPAID = 1;
+    public static final int ORDER_STATUS_CANCELLED = 4;
 }
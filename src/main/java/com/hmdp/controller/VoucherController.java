@@ -4,7 +4,10 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.StockStreamHub;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.Resource;
 
@@ -22,6 +25,8 @@ public class VoucherController {
 
     @Resource
     private IVoucherService voucherService;
+    @Resource
+    private StockStreamHub stockStreamHub;
 
     /**
      * 新增普通券
@@ -30,7 +35,7 @@ public class VoucherController {
      */
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
-        voucherService.save(voucher);
+        voucherService.addVoucher(voucher);
         return Result.ok(voucher.getId());
     }
 
@@ -45,6 +50,15 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 订阅优惠券实时库存（SSE），库存变化时推送 event: stock，data为剩余库存
+     * @param voucherId 优惠券id
+     */
+    @GetMapping(value = "/{id}/stock/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamStock(@PathVariable("id") Long voucherId) {
+        return stockStreamHub.subscribe(voucherId);
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
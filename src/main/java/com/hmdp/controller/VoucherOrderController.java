@@ -3,12 +3,15 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -26,7 +29,36 @@ public class VoucherOrderController {
     private IVoucherOrderService voucherOrderService;
     
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
-        return voucherOrderService.seckillVoucher(voucherId);
+    public Result seckillVoucher(@PathVariable("id") Long voucherId,
+                                 @RequestParam(value = "ticket", required = false) String ticket) {
+        return voucherOrderService.seckillVoucher(voucherId, ticket);
+    }
+
+    /**
+     * 抢购优惠券（异步版本），返回结果与 seckill/{id} 相同
+     */
+    @PostMapping("seckill/{id}/async")
+    public CompletableFuture<Result> seckillVoucherAsync(@PathVariable("id") Long voucherId,
+                                                         @RequestParam(value = "ticket", required = false) String ticket) {
+        return voucherOrderService.seckillVoucherAsync(voucherId, ticket);
+    }
+
+    /**
+     * 查询秒杀订单状态：排队中、已落库、失败（含原因），只读Redis，不访问数据库
+     * @param orderId 订单id
+     */
+    @GetMapping("{id}/status")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    /**
+     * 领取秒杀排队号
+     * @param voucherId 优惠券id
+     * @return 排队位置、预计等待时间、排队凭证
+     */
+    @PostMapping("seckill/{id}/ticket")
+    public Result seckillTicket(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.seckillTicket(voucherId);
     }
 }
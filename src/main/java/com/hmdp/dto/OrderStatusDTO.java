@@ -0,0 +1,10 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class OrderStatusDTO {
+    private Long orderId;
+    private String status;  //QUEUED 排队中，PERSISTED 已落库，FAILED 失败
+    private String reason;  //失败原因
+}
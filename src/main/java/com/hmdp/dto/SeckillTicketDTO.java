@@ -0,0 +1,11 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class SeckillTicketDTO {
+    private Long position;  //排队位置
+    private Long admitTime; //放行时间戳（毫秒）
+    private Long waitMillis;    //预计等待时间（毫秒）
+    private String ticket;  //排队凭证，到达放行时间后携带它抢购
+}
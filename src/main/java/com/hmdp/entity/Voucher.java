@@ -78,6 +78,18 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 库存分片数，大于1时开启分片库存（用于超热门秒杀券）
+     */
+    @TableField(exist = false)
+    private Integer stockShards;
+
+    /**
+     * 排队放行速率（每秒），为空使用默认配置
+     */
+    @TableField(exist = false)
+    private Integer admitRate;
+
     /**
      * 生效时间
      */
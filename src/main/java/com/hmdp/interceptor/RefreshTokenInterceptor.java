@@ -6,7 +6,7 @@ import com.hmdp.constant.RedisConstants;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -15,9 +15,11 @@ import java.util.concurrent.TimeUnit;
 
 /**
  *  刷新token拦截器（拦截一切请求）
+ *  异步请求（返回CompletableFuture、SseEmitter）在原线程上不会回调afterCompletion，
+ *  而是回调afterConcurrentHandlingStarted，两处都要清理线程中的用户，否则下一个请求会沿用上一个用户
  */
 
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 
     private StringRedisTemplate stringRedisTemplate;
     
@@ -30,6 +32,8 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
     //当然，没有登录，就没有token，自然没有刷新token动作，所以直接放过去让登录拦截器拦截。
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //0. 先清掉线程里可能残留的用户，没有token的请求绝不能继承上一个请求的身份
+        UserHolder.removeUser();
         //1.获取session
 //        HttpSession session = request.getSession();
         //1. 从请求头中拿到token
@@ -65,4 +69,10 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
         UserHolder.removeUser();
     }
+
+    //异步请求开始后、原线程归还容器前拦截
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
+    }
 }
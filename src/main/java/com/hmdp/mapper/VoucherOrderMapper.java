@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,31 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行插入订单
+     * @param orders 订单列表
+     * @return 插入行数
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 插入订单，同一用户同一优惠券已有订单时不插入（INSERT IGNORE，依赖唯一索引uk_voucher_user）
+     * @param order 订单
+     * @return 插入行数，0表示重复订单
+     */
+    int insertIgnore(VoucherOrder order);
+
+    /**
+     * 删除同一用户同一优惠券的已取消订单（唯一索引下已取消的订单占着位置，重新下单前先删除，新订单用自己的id插入）
+     * @param order 新订单（取voucherId、userId）
+     * @return 删除行数，0表示没有已取消的订单
+     */
+    int deleteCancelled(VoucherOrder order);
+
+    /**
+     * 锁定一批未支付订单 SELECT ... FOR UPDATE
+     * @param ids 订单id
+     * @return 仍为未支付状态的订单
+     */
+    List<VoucherOrder> selectUnpaidForUpdate(@Param("ids") List<Long> ids);
 }
@@ -3,9 +3,11 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.List;
 
 /**
  * <p>
@@ -36,5 +38,12 @@ public interface IUserService extends IService<User> {
     Result userSign();
 
     Result signCount();
+
+    /**
+     * 根据id批量查询用户（走缓存），按ids的顺序返回
+     * @param ids
+     * @return
+     */
+    List<UserDTO> queryUserDTOs(List<Long> ids);
     
 }
@@ -4,6 +4,10 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -17,9 +21,70 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     /**
      * 抢购优惠券
      * @param voucherId
+     * @param ticket 排队凭证（开启排队时必传）
+     * @return
+     */
+    Result seckillVoucher(Long voucherId, String ticket);
+
+    /**
+     * 抢购优惠券（异步版本，不阻塞调用线程）
+     * @param voucherId
+     * @param ticket 排队凭证（开启排队时必传）
+     * @return
+     */
+    CompletableFuture<Result> seckillVoucherAsync(Long voucherId, String ticket);
+
+    /**
+     * 领取秒杀排队号
+     * @param voucherId
+     * @return
+     */
+    Result seckillTicket(Long voucherId);
+
+    /**
+     * 查询秒杀订单状态（只读Redis）
+     * @param orderId
      * @return
      */
-    Result seckillVoucher(Long voucherId);
+    Result queryOrderStatus(Long orderId);
+
+    /**
+     * 确保订单消息队列的消费者组存在
+     */
+    void ensureStreamGroup();
+
+    /**
+     * 处理消息队列中的订单：加锁创建订单，并更新订单状态
+     * @param voucherOrder
+     * @return 失败原因，成功返回null
+     */
+    String handleVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 创建订单
+     * @param voucherOrder
+     * @return 失败原因，成功返回null
+     */
+    String createOrder(VoucherOrder voucherOrder);
 
-    void createOrder(VoucherOrder voucherOrder);
+    /**
+     * 创建订单（幂等模式，依赖唯一索引，不加锁）
+     * @param voucherOrder
+     * @return 失败原因，成功返回null
+     */
+    String createOrderIdempotent(VoucherOrder voucherOrder);
+
+    /**
+     * 批量创建订单
+     * @param voucherOrders
+     * @return 未落库的订单id -> 失败原因
+     */
+    Map<Long, String> createOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 取消超时未支付的订单，归还数据库库存
+     * @param orderIds
+     * @return 本次取消的订单
+     */
+    List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds);
 }
@@ -16,5 +16,11 @@ public interface IVoucherService extends IService<Voucher> {
 
     Result queryVoucherOfShop(Long shopId);
 
+    /**
+     * 新增普通券
+     * @param voucher
+     */
+    void addVoucher(Voucher voucher);
+
     void addSeckillVoucher(Voucher voucher);
 }
@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
@@ -139,15 +138,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         //2. 解析出其中的用户id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idStr = StrUtil.join(",",ids);
         //3. 根据用户id查询用户 
         /*
-        * 在mysql中用in(5,1)查询，他不会按你给的顺序查，这就导致我们在redis中准备的排序，到数据库一查，失效了，于是，我们要手动进行orderBy
-        * WHERE id IN (5,1) ORDER BY FIELD(ID,5,1)
+        * 在mysql中用in(5,1)查询，他不会按你给的顺序查，这就导致我们在redis中准备的排序，到数据库一查，失效了，
+        * 批量查询缓存按ids的顺序返回，不需要再 ORDER BY FIELD(ID,5,1)
         * */
-        List<UserDTO> userDTOS = userService.query().in("id", ids).last("ORDER BY FIELD(id,"+idStr+")").list()
-                .stream().map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        List<UserDTO> userDTOS = userService.queryUserDTOs(ids);
         return Result.ok(userDTOS);
     }
 
@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
@@ -29,6 +30,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -53,6 +55,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      */
     @Override
     public Result queryById(Long id) {
+        //提前刷新：热点店铺在逻辑过期前由后台重新加载
+        if(cacheClient.isRefreshAhead()){
+            Shop shop = cacheClient.queryWithRefreshAhead(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById,
+                    RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            return shop == null ? Result.fail("商铺信息不存在") : Result.ok(shop);
+        }
         //缓存穿透
 //        Shop shop = queryWithPassThrough(id);
         Shop shop = cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, new Function<Long, Shop>() {
@@ -135,60 +143,13 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
     
     //互斥锁解决缓存击穿
+    /*
+    * 原来没抢到锁时 Thread.sleep(50) 后递归重试，每个等待的线程都要反复查缓存、SETNX。
+    * 现在由缓存工具类处理：同一节点内同一个店铺只有一个线程加载（其他线程等它的结果），Redis锁只用来协调多个节点。
+    * */
     public Shop queryWithMutex(Long id){
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        //1.去redis查询缓存中是否存在商铺信息
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        //2.1 存在，直接返回
-        if(StrUtil.isNotBlank(shopJson)){
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-
-        //判断缓存中的值是否为缓存的空值
-        if(shopJson != null){   
-            return null;
-        }
-
-        //2.2 不存在
-        //3.获取互斥锁
-        //每个店铺一个锁
-        String lockKey = "lock:shop:" + id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            //4.判断获取锁是否成功
-            if(!isLock){
-                //4.1 失败，休眠后重新从查询缓存开始
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-            //4.2 成功
-            //获取锁成功，再次检测redis缓存是否存在，如果存在，则无需重建缓存
-            shopJson = stringRedisTemplate.opsForValue().get(key);
-            if(StrUtil.isNotBlank(shopJson)){
-                return JSONUtil.toBean(shopJson, Shop.class); 
-            }
-            //重建缓存
-            //5.根据id去数据库查询商铺信息
-            shop = getById(id);
-            //5.1商铺信息在数据库不存在
-            if(shop == null){
-                //缓存空值到redis中
-                stringRedisTemplate.opsForValue().set(key,"",RedisConstants.CACHE_NULL_TTL,TimeUnit.MINUTES);
-                return null;
-            }
-            //5.2存在
-            //将商铺信息缓存到redis中
-            stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop),RedisConstants.CACHE_SHOP_TTL,TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }finally {
-            //6.释放锁
-            unlock(lockKey);
-        }
-        //7. 返回
-        return shop;
+        return cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById,
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
     
     //缓存穿透
@@ -271,8 +232,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //1.操作数据库
         updateById(shop);
-        //2.删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        //2.删除缓存（同时通知所有节点删除本地缓存）
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 
@@ -321,10 +282,16 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             distanceMap.put(shopIdStr,result.getDistance());
         });
         
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id, "+ idStr +")").list();
-        for (Shop shop : shops) {
+        //一次MGET批量查询店铺缓存，未命中的再批量查询数据库，按ids的顺序返回
+        List<Shop> cached = cacheClient.queryBatchWithPassThrough(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> shops = new ArrayList<>(cached.size());
+        for (Shop shop : cached) {
+            //缓存的对象可能在本地缓存中共享，复制一份再设置距离
+            shop = BeanUtil.copyProperties(shop, Shop.class);
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            shops.add(shop);
         }
         //5.返回（店铺信息、位置）
         return Result.ok(shops);
@@ -1,35 +1,69 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.OrderStatusDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillTicketDTO;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.OrderStatusRecorder;
+import com.hmdp.utils.OrderStreamMetrics;
+import com.hmdp.utils.OrderTimeoutQueue;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStockRouter;
+import com.hmdp.utils.SeckillWaitingRoom;
+import com.hmdp.utils.SnowflakeIdWorker;
+import com.hmdp.utils.SoldOutRegistry;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.constant.RedisConstants.STREAM_ORDERS_GROUP;
+import static com.hmdp.constant.RedisConstants.STREAM_ORDERS_KEY;
+import static com.hmdp.constant.SystemConstants.ORDER_STATUS_CANCELLED;
+import static com.hmdp.constant.SystemConstants.ORDER_STATUS_UNPAID;
 
 /**
  * <p>
@@ -49,42 +83,132 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private IVoucherOrderService voucherOrderService;
     @Resource
     private RedisIdWorker redisIdWorker;
+    //配置了 hmdp.id.generator=snowflake 时才存在
+    @Autowired(required = false)
+    private SnowflakeIdWorker snowflakeIdWorker;
+    //订单id生成器
+    private IdGenerator orderIdGenerator;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private RedissonClient redissonClient;
 
-    //lua脚本
-    private final static DefaultRedisScript<Long> SECKILL_SCRIPT;
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);    //设置返回值类型
-    }
+    @Resource
+    private SeckillStockRouter seckillStockRouter;
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+    @Resource
+    private OrderStatusRecorder orderStatusRecorder;
+    @Resource
+    private OrderStreamMetrics orderStreamMetrics;
+    @Resource
+    private OrderTimeoutQueue orderTimeoutQueue;
+
+    //订单落库失败原因
+    private static final String ORDER_FAIL_DUPLICATE = "重复下单";
+    private static final String ORDER_FAIL_SOLD_OUT = "库存不足";
+    private static final String WRITE_MODE_IDEMPOTENT = "idempotent";
 
     //阻塞队列
 //    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-    //线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
-    
+
+    //每个节点的消费者数量
+    @Value("${hmdp.seckill.consumer.count:4}")
+    private int consumerCount;
+    //节点标识，默认取 主机名:端口，保证同一台机器上的多个实例消费者名也不重复
+    @Value("${hmdp.seckill.consumer.node-id:}")
+    private String nodeId;
+    @Value("${server.port:8080}")
+    private int serverPort;
+    //吞吐量上报间隔（秒）
+    @Value("${hmdp.seckill.consumer.report-interval:30}")
+    private long reportIntervalSeconds;
+    //批量模式：每次最多读取的消息数，为1时逐条处理
+    @Value("${hmdp.seckill.consumer.batch-size:1}")
+    private int batchSize;
+    //批量模式下的阻塞读超时（毫秒），凑不满一批也会在超时后处理已读到的消息
+    @Value("${hmdp.seckill.consumer.batch-block-ms:200}")
+    private long batchBlockMillis;
+    //订单落库方式：lock（分布式锁 + 先查后插）或 idempotent（唯一索引 + INSERT IGNORE）
+    @Value("${hmdp.seckill.order.write-mode:lock}")
+    private String writeMode;
+
+    //线程池（每个消费者一个线程）
+    private ExecutorService seckillOrderExecutor;
+    //异步秒杀接口的结果处理线程池
+    private final ExecutorService seckillCallbackExecutor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), ThreadUtil.newNamedThreadFactory("seckill-callback-", true));
+    private volatile boolean running = true;
+
     /*
-        一旦项目启动，用户就有可能抢购订单，所以，应在一开始就提交任务，处理阻塞队列。
-        通过@PostConstruct，在类一开始加载时，就提交任务。*/
+        一旦项目启动，用户就有可能抢购订单，所以，应在一开始就提交任务，处理消息队列。
+        通过@PostConstruct，在类一开始加载时，就提交任务。
+        多个实例共享消费者组g1，组内每条消息只会投递给一个消费者，所以扩容消费者不会重复消费。*/
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        orderIdGenerator = snowflakeIdWorker != null ? snowflakeIdWorker : redisIdWorker;
+        ensureStreamGroup();
+        if(StrUtil.isBlank(nodeId)){
+            nodeId = NetUtil.getLocalHostName() + ":" + serverPort;
+        }
+        int count = Math.max(1, consumerCount);
+        seckillOrderExecutor = Executors.newFixedThreadPool(count, ThreadUtil.newNamedThreadFactory("seckill-order-", false));
+        for (int i = 0; i < count; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(nodeId + "-c" + i));
+        }
+        log.info("订单消费者启动，节点：{}，消费者数量：{}", nodeId, count);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        running = false;
+        seckillOrderExecutor.shutdownNow();
+        seckillCallbackExecutor.shutdown();
+    }
+
+    /**
+     * 创建消费者组（XGROUP CREATE stream.orders g1 0 MKSTREAM），已存在则忽略
+     */
+    @Override
+    public void ensureStreamGroup(){
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    STREAM_ORDERS_KEY.getBytes(StandardCharsets.UTF_8), STREAM_ORDERS_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            //BUSYGROUP：消费者组已存在
+            log.debug("消费者组已存在：{}", e.getMessage());
+        }
     }
     
     //任务
     private class VoucherOrderHandler implements Runnable{
-        String queueName = "stream.orders";
+        String queueName = STREAM_ORDERS_KEY;
+        //消费者名称，组内唯一
+        private final String consumerName;
+        //吞吐量统计
+        private long processed = 0;
+        private long lastReportTime = System.currentTimeMillis();
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
         @Override
         public void run() {
-            while (true){
+            //pending-list中未确认的订单（包括本消费者上次停机前未确认的）由PendingOrderRecoveryTask认领重试，这里只消费新消息
+            while (running){
                 try {
-                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders >
+                    reportThroughput();
+                    if(batchSize > 1){
+                        //批量模式
+                        consumeBatch();
+                        continue;
+                    }
+                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 consumerName COUNT 1 BLOCK 2000 STREAMS stream.orders >
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
+                            Consumer.from(STREAM_ORDERS_GROUP, consumerName),
                             StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
                             StreamOffset.create(queueName, ReadOffset.lastConsumed())
                     );
@@ -101,57 +225,92 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                     Map<Object, Object> values = record.getValue();
                     VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
                     // 4.实际创建订单
-                    handleVoucherOrder(voucherOrder);
+                    String failReason = handleVoucherOrder(voucherOrder);
                     // 5.ACK确认 sack stream.orders g1 id //id是消息id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+                    stringRedisTemplate.opsForStream().acknowledge(queueName,STREAM_ORDERS_GROUP,record.getId());
+                    orderStreamMetrics.processed(record.getId(), failReason);
+                    processed++;
                 } catch (Exception e) {
-                    log.error("创建订单异常",e);
-                    /*处理订单有异常，去pending-list中处理异常订单*/
-                    handlePendingListOrders();
-                }
-                
-            }
-        }
-
-        private void handlePendingListOrders() {
-            while (true){
-                try {
-                    // 1.获取pending-list队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.orders 0
-                    /*pending-list没有block*/
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-                    // 2.判断获取订单是否成功
-                    if(list == null || list.size() == 0){
-                        //pending-list中没有异常订单，直接跳出
+                    if(!running){
                         break;
                     }
-                    // 2.2 成功：
-                    // 3.解析出订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    // 4.实际创建订单
-                    handleVoucherOrder(voucherOrder);
-                    // 5.ACK确认 sack stream.orders g1 id //id是消息id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
-                } catch (Exception e) {
-                    log.error("pending-list订单处理异常",e);
-                    /*如果在处理pending-list订单过程中又出现异常，捕捉到后，又会接着走while，再次处理*/
-                    /*为了不要太过频繁，让它休眠一下*/
+                    /*处理失败的消息留在pending-list中，由恢复任务按空闲时间认领重试，不阻塞新消息的消费*/
+                    log.error("创建订单异常",e);
                     try {
                         Thread.sleep(20);
                     } catch (InterruptedException ex) {
-                        ex.printStackTrace();
+                        Thread.currentThread().interrupt();
+                        break;
                     }
                 }
+                
             }
         }
+
+        /*
+         * 批量消费：一次读取最多batchSize条消息，在一个事务内完成落库，最后一次性ACK
+         * XREADGROUP GROUP g1 consumerName COUNT batchSize BLOCK batchBlockMillis STREAMS stream.orders >
+         * 出现异常时整批消息都未ACK，会留在pending-list中，由恢复任务逐条认领重试
+         */
+        private void consumeBatch() {
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                    Consumer.from(STREAM_ORDERS_GROUP, consumerName),
+                    StreamReadOptions.empty().count(batchSize).block(Duration.ofMillis(batchBlockMillis)),
+                    StreamOffset.create(queueName, ReadOffset.lastConsumed())
+            );
+            if(list == null || list.isEmpty()){
+                return;
+            }
+            List<VoucherOrder> orders = new ArrayList<>(list.size());
+            RecordId[] recordIds = new RecordId[list.size()];
+            for (int i = 0; i < list.size(); i++) {
+                MapRecord<String, Object, Object> record = list.get(i);
+                orders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                recordIds[i] = record.getId();
+            }
+            //一个事务内批量创建订单
+            Map<Long, String> failed = orderStreamMetrics.timeCreate("batch", () -> voucherOrderService.createOrders(orders));
+            //事务提交后批量更新订单状态
+            List<Long> persisted = orders.stream().map(VoucherOrder::getId)
+                    .filter(id -> !failed.containsKey(id)).collect(Collectors.toList());
+            orderStatusRecorder.record(persisted, failed);
+            //落库的订单进入超时未支付队列
+            orderTimeoutQueue.add(persisted);
+            //一次性ACK整批消息 XACK stream.orders g1 id1 id2 ...
+            stringRedisTemplate.opsForStream().acknowledge(queueName, STREAM_ORDERS_GROUP, recordIds);
+            for (int i = 0; i < list.size(); i++) {
+                orderStreamMetrics.processed(recordIds[i], failed.get(orders.get(i).getId()));
+            }
+            processed += list.size();
+        }
+
+        //按固定间隔打印本消费者的吞吐量
+        private void reportThroughput() {
+            long now = System.currentTimeMillis();
+            long elapsed = now - lastReportTime;
+            if(elapsed < TimeUnit.SECONDS.toMillis(reportIntervalSeconds)){
+                return;
+            }
+            if(processed > 0){
+                log.info("消费者{}近{}s处理订单{}条，{}/s", consumerName, elapsed / 1000, processed, processed * 1000 / elapsed);
+            }
+            processed = 0;
+            lastReportTime = now;
+        }
     }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
+    /**
+     * 加锁创建订单，并更新订单状态
+     * @return 失败原因，成功返回null
+     */
+    @Override
+    public String handleVoucherOrder(VoucherOrder voucherOrder) {
+        //幂等模式：一人一单由唯一索引保证，不需要分布式锁
+        if(WRITE_MODE_IDEMPOTENT.equals(writeMode)){
+            String failReason = orderStreamMetrics.timeCreate("single", () -> voucherOrderService.createOrderIdempotent(voucherOrder));
+            recordOrderStatus(voucherOrder.getId(), failReason);
+            return failReason;
+        }
         /*这里的userId不能再从UserHolder中去拿了，因为这是异步开启的，线程池中的线程，不再是之前的主线程了*/
         //获取用户id
         Long userId = voucherOrder.getUserId();
@@ -161,41 +320,150 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         //判断获取锁是否成功
         if(!isLock){
             log.error("不可重复下单");
-            return;
+            orderStatusRecorder.failed(voucherOrder.getId(), ORDER_FAIL_DUPLICATE);
+            return ORDER_FAIL_DUPLICATE;
         }
+        String failReason;
         try {
-            //创建订单
-            proxy.createOrder(voucherOrder);
+            //创建订单（通过注入的代理对象调用，事务才会生效）
+            failReason = orderStreamMetrics.timeCreate("single", () -> voucherOrderService.createOrder(voucherOrder));
         } finally {
             //释放锁
             lock.unlock();
         }
+        //事务提交后再更新订单状态
+        recordOrderStatus(voucherOrder.getId(), failReason);
+        return failReason;
+    }
+
+    private void recordOrderStatus(Long orderId, String failReason) {
+        if(failReason == null){
+            orderStatusRecorder.persisted(orderId);
+            orderTimeoutQueue.add(Collections.singletonList(orderId));
+        } else {
+            orderStatusRecorder.failed(orderId, failReason);
+        }
     }
 
-    private IVoucherOrderService proxy;
+    /**
+     * 查询秒杀订单状态（只读Redis）
+     */
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        //该接口不经过登录拦截器，未登录时不能查询，否则任何人都能遍历订单id查看他人订单
+        UserDTO user = UserHolder.getUser();
+        if(user == null){
+            return Result.fail("请先登录");
+        }
+        OrderStatusDTO status = orderStatusRecorder.get(orderId, user.getId());
+        if(status == null){
+            return Result.fail("订单不存在");
+        }
+        return Result.ok(status);
+    }
+
+    //优惠券开始时间缓存（毫秒），排队放行从开始时间算起；限制数量和有效期，修改开始时间后最多一分钟生效
+    private final LRUCache<Long, Long> voucherBeginTimes = new LRUCache<>(10000, TimeUnit.MINUTES.toMillis(1));
+
+    /**
+     * 领取秒杀排队号
+     */
+    @Override
+    public Result seckillTicket(Long voucherId) {
+        if(!seckillWaitingRoom.isEnabled()){
+            return Result.fail("未开启排队");
+        }
+        Long beginMillis = voucherBeginTimes.get(voucherId, false);
+        if(beginMillis == null){
+            SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+            if(voucher == null){
+                return Result.fail("优惠券不存在");
+            }
+            beginMillis = voucher.getBeginTime() == null ? 0L : voucher.getBeginTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            voucherBeginTimes.put(voucherId, beginMillis);
+        }
+        Long userId = UserHolder.getUser().getId();
+        SeckillTicketDTO ticket = seckillWaitingRoom.issue(voucherId, userId, beginMillis);
+        if(ticket == null){
+            return Result.fail("库存不足");
+        }
+        return Result.ok(ticket);
+    }
+
+    //秒杀脚本返回值对应的提示信息
+    private static String seckillFailMessage(int r) {
+        switch (r) {
+            case SeckillStockRouter.SOLD_OUT:
+                return "库存不足";
+            case SeckillStockRouter.DUPLICATE:
+                return "请不要重复下单";
+            case SeckillStockRouter.NOT_BEGUN:
+                return "活动尚未开始！";
+            case SeckillStockRouter.ENDED:
+                return "活动已经结束";
+            default:
+                return "服务器异常";
+        }
+    }
 
     /**
      * 抢购优惠券（秒杀优化版本二）（redis stream消息队列版）
      */
     @Override
-    public Result seckillVoucher(Long voucherId) {
+    public Result seckillVoucher(Long voucherId, String ticket) {
+        //本机已知售罄，直接返回，不再访问redis
+        if(soldOutRegistry.isSoldOut(voucherId)){
+            return Result.fail("库存不足");
+        }
         //获取用户id
         Long userId = UserHolder.getUser().getId();
+        //开启排队时，校验排队凭证（本地验签，不访问redis）
+        if(seckillWaitingRoom.isEnabled() && !seckillWaitingRoom.isAdmitted(voucherId, userId, ticket)){
+            return Result.fail("排队中，请稍后再试");
+        }
         //生成订单id
-        long orderId = redisIdWorker.nextId("order");
-        //1. 调用lua脚本  /*没有key，传空集合，不能传null*/
-        /*lua脚本中参数都是String类型，传参时，注意要将参数类型转为String*/
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(), voucherId.toString(), userId.toString(), String.valueOf(orderId));
+        long orderId = orderIdGenerator.nextId("order");
+        //1. 调用lua脚本（分片库存模式下由路由决定扣哪个分片）
+        int r = seckillStockRouter.execute(voucherId, userId, orderId);
         //2. 判断返回结果
-        int r = result.intValue();
-        if(r != 0){
-            return Result.fail(r == 1 ? "库存不足" : "请不要重复下单");
+        return seckillResult(voucherId, orderId, r);
+    }
+
+    /**
+     * 抢购优惠券（异步版本）
+     * 生成订单id、执行秒杀脚本都走Lettuce异步命令，等待Redis期间不占用servlet线程。
+     * 校验逻辑、返回结果与同步版本完全一致。
+     */
+    @Override
+    public CompletableFuture<Result> seckillVoucherAsync(Long voucherId, String ticket) {
+        if(soldOutRegistry.isSoldOut(voucherId)){
+            return CompletableFuture.completedFuture(Result.fail("库存不足"));
         }
-        
-        //获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        //UserHolder是ThreadLocal，必须在当前线程取出
+        Long userId = UserHolder.getUser().getId();
+        if(seckillWaitingRoom.isEnabled() && !seckillWaitingRoom.isAdmitted(voucherId, userId, ticket)){
+            return CompletableFuture.completedFuture(Result.fail("排队中，请稍后再试"));
+        }
+        return orderIdGenerator.nextIdAsync("order")
+                .thenCompose(orderId -> seckillStockRouter.executeAsync(voucherId, userId, orderId)
+                        //结果处理可能发布售罄消息（阻塞调用），切到回调线程池，不占用Lettuce的IO线程
+                        .thenApplyAsync(r -> seckillResult(voucherId, orderId, r), seckillCallbackExecutor))
+                .exceptionally(e -> {
+                    log.error("异步秒杀异常，优惠券：{}，用户：{}", voucherId, userId, e);
+                    return Result.fail("服务器异常");
+                });
+    }
 
-        //4. 将订单id返回
+    //秒杀脚本返回结果 -> 接口返回值
+    private Result seckillResult(Long voucherId, long orderId, int r) {
+        if(r == SeckillStockRouter.SOLD_OUT){
+            //标记售罄并通知其他节点
+            soldOutRegistry.markSoldOut(voucherId);
+        }
+        if(r != 0){
+            return Result.fail(seckillFailMessage(r));
+        }
+        //将订单id返回
         return Result.ok(orderId);
     }
     
@@ -231,16 +499,23 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        return Result.ok(orderId);   
 //    }
 
+    /**
+     * 创建订单
+     * @return 失败原因，成功返回null
+     */
     @Transactional
-    public void createOrder(VoucherOrder voucherOrder) {
+    public String createOrder(VoucherOrder voucherOrder) {
         //一人一单（高并发）
         //4.判断用户是否已下过单
         /*这里同样不能通过UserHolder取userId*/
         Long userId = voucherOrder.getUserId();
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        if (count > 0) {
+        //已取消的订单不算
+        List<VoucherOrder> existing = query().select("status")
+                .eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).list();
+        boolean hasCancelled = existing.stream().anyMatch(VoucherOrderServiceImpl::isCancelled);
+        if (existing.stream().anyMatch(o -> !isCancelled(o))) {
             log.error("不可重复下单！");
-            return;
+            return ORDER_FAIL_DUPLICATE;
         }
         // 5.扣减库存
         //解决超卖（高并发）：加乐观锁：gt("stock",0)，在修改数据前，查看库存信息如果大于0，则可以卖。
@@ -249,10 +524,165 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 .update();
         if (!success) {
             log.error("没货噜");
-            return;
+            return ORDER_FAIL_SOLD_OUT;
+        }
+        // 6.插入订单（有已取消的订单时先删除，兼容唯一索引）
+        if (hasCancelled) {
+            getBaseMapper().deleteCancelled(voucherOrder);
         }
-        // 6.插入订单
         save(voucherOrder);
+        return null;
+    }
+
+    /**
+     * 创建订单（幂等模式）：先 INSERT IGNORE，插入成功才扣减库存，不查询、不加锁
+     * 重复订单由唯一索引 (voucher_id, user_id) 挡住，影响行数为0；
+     * 扣减库存失败时回滚事务，撤销刚插入的订单。
+     * @return 失败原因，成功返回null
+     */
+    @Transactional
+    public String createOrderIdempotent(VoucherOrder voucherOrder) {
+        // 1.插入订单，重复订单影响行数为0；已取消的订单占着唯一索引，删除后再插入
+        if (getBaseMapper().insertIgnore(voucherOrder) == 0
+                && (getBaseMapper().deleteCancelled(voucherOrder) == 0 || getBaseMapper().insertIgnore(voucherOrder) == 0)) {
+            log.error("不可重复下单！");
+            return ORDER_FAIL_DUPLICATE;
+        }
+        // 2.扣减库存
+        boolean success = seckillVoucherService.update().setSql("stock = stock - 1")
+                .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0)
+                .update();
+        if (!success) {
+            log.error("没货噜");
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return ORDER_FAIL_SOLD_OUT;
+        }
+        return null;
+    }
+
+
+    /**
+     * 批量创建订单（批量消费模式）
+     * 一人一单由lua脚本保证，这里不再逐单加分布式锁，而是在事务内一次性查出已存在的订单做兜底过滤；
+     * 然后按优惠券分组，每个优惠券只执行一次 stock = stock - k，最后多行插入订单。
+     * @param voucherOrders 一批订单
+     * @return 未落库的订单id -> 失败原因
+     */
+    @Transactional
+    public Map<Long, String> createOrders(List<VoucherOrder> voucherOrders) {
+        Map<Long, String> failed = new HashMap<>();
+        // 1.批内去重（同一用户同一优惠券只保留第一单）
+        Map<String, VoucherOrder> unique = new LinkedHashMap<>(voucherOrders.size());
+        for (VoucherOrder order : voucherOrders) {
+            if(unique.putIfAbsent(order.getUserId() + ":" + order.getVoucherId(), order) != null){
+                failed.put(order.getId(), ORDER_FAIL_DUPLICATE);
+            }
+        }
+        if(unique.size() < voucherOrders.size()){
+            log.error("不可重复下单！批内重复订单{}条", voucherOrders.size() - unique.size());
+        }
+        // 2.一次查询过滤掉数据库中已存在的订单
+        Set<Long> userIds = unique.values().stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = unique.values().stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        List<VoucherOrder> existing = query().select("user_id", "voucher_id", "status")
+                .in("user_id", userIds).in("voucher_id", voucherIds).list();
+        //已取消的订单不算重复，落库前删除
+        Set<String> cancelled = new HashSet<>();
+        for (VoucherOrder order : existing) {
+            if (isCancelled(order)) {
+                cancelled.add(order.getUserId() + ":" + order.getVoucherId());
+                continue;
+            }
+            VoucherOrder removed = unique.remove(order.getUserId() + ":" + order.getVoucherId());
+            if(removed != null){
+                log.error("不可重复下单！");
+                failed.put(removed.getId(), ORDER_FAIL_DUPLICATE);
+            }
+        }
+        if(unique.isEmpty()){
+            return failed;
+        }
+        // 3.按优惠券分组扣减库存
+        Map<Long, List<VoucherOrder>> byVoucher = unique.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        List<VoucherOrder> accepted = new ArrayList<>(unique.size());
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            List<VoucherOrder> orders = entry.getValue();
+            int k = orders.size();
+            //乐观锁：库存不少于k才整体扣减
+            boolean success = seckillVoucherService.update().setSql("stock = stock - " + k)
+                    .eq("voucher_id", entry.getKey()).ge("stock", k)
+                    .update();
+            if (success) {
+                accepted.addAll(orders);
+                continue;
+            }
+            //库存不足以整体扣减（正常情况下redis已经挡住了超卖，只有数据不一致时才会走到这里），退回逐单扣减
+            boolean soldOut = false;
+            for (VoucherOrder order : orders) {
+                if (!soldOut) {
+                    soldOut = !seckillVoucherService.update().setSql("stock = stock - 1")
+                            .eq("voucher_id", entry.getKey()).gt("stock", 0)
+                            .update();
+                }
+                if (soldOut) {
+                    log.error("没货噜");
+                    failed.put(order.getId(), ORDER_FAIL_SOLD_OUT);
+                    continue;
+                }
+                accepted.add(order);
+            }
+        }
+        // 4.删除已取消的订单后多行插入订单
+        for (VoucherOrder order : accepted) {
+            if (cancelled.contains(order.getUserId() + ":" + order.getVoucherId())) {
+                getBaseMapper().deleteCancelled(order);
+            }
+        }
+        if(!accepted.isEmpty()){
+            getBaseMapper().insertBatch(accepted);
+        }
+        return failed;
+    }
+
+    /**
+     * 取消一批超时未支付的订单，并归还数据库库存
+     * 1.SELECT ... FOR UPDATE 锁住仍为未支付的订单（并发支付的订单在这里被排除或等待支付事务提交）
+     * 2.一条UPDATE改为已取消
+     * 3.按优惠券分组，每个优惠券执行一次 stock = stock + k
+     * Redis库存、已下单用户由调用方在事务提交后归还
+     * @param orderIds 到期的订单id
+     * @return 本次取消的订单（id、userId、voucherId）
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 1.锁定仍为未支付的订单
+        List<VoucherOrder> unpaid = getBaseMapper().selectUnpaidForUpdate(orderIds);
+        if (unpaid.isEmpty()) {
+            return unpaid;
+        }
+        // 2.改为已取消
+        List<Long> ids = unpaid.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        update().set("status", ORDER_STATUS_CANCELLED).set("update_time", LocalDateTime.now())
+                .in("id", ids).eq("status", ORDER_STATUS_UNPAID)
+                .update();
+        // 3.按优惠券分组归还库存
+        Map<Long, Long> returned = unpaid.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        for (Map.Entry<Long, Long> entry : returned.entrySet()) {
+            seckillVoucherService.update().setSql("stock = stock + " + entry.getValue())
+                    .eq("voucher_id", entry.getKey())
+                    .update();
+        }
+        return unpaid;
+    }
+
+    private static boolean isCancelled(VoucherOrder order) {
+        return order.getStatus() != null && order.getStatus() == ORDER_STATUS_CANCELLED;
     }
     
 //    /**
@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
@@ -7,14 +8,27 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.task.SeckillPreheatTask;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.SeckillStockRouter;
+import com.hmdp.utils.SeckillWaitingRoom;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
-import static com.hmdp.constant.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.constant.RedisConstants.CACHE_VOUCHER_SHOP_KEY;
+import static com.hmdp.constant.RedisConstants.CACHE_VOUCHER_TTL;
 
 /**
  * <p>
@@ -30,14 +44,76 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStockRouter seckillStockRouter;
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+    @Resource
+    private CacheClient cacheClient;
 
+    //秒杀券预热任务，未开启预热时不存在（预热任务也依赖本类，用时再取，避免循环依赖）
+    @Autowired
+    private ObjectProvider<SeckillPreheatTask> seckillPreheatTask;
+
+    /**
+     * 查询店铺的优惠券列表
+     * 优惠券列表（静态信息）通过CacheClient缓存，优惠券增删改时删除缓存；秒杀券的库存以Redis中的实时库存为准，一次MGET覆盖。
+     */
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 1.查询缓存，缓存不存在查询数据库（空列表也缓存，避免没有优惠券的店铺每次都查库）
+        List<Voucher> vouchers = cacheClient.queryListWithPassThrough(CACHE_VOUCHER_SHOP_KEY, shopId, Voucher.class,
+                getBaseMapper()::queryVoucherOfShop, CACHE_VOUCHER_TTL, TimeUnit.MINUTES);
+        // 2.秒杀券覆盖实时库存（缓存的列表可能被多个请求共享，复制后再修改）
+        List<Long> seckillIds = vouchers.stream().filter(v -> v.getStock() != null)
+                .map(Voucher::getId).collect(Collectors.toList());
+        Map<Long, Long> stocks = seckillStockRouter.liveStocks(seckillIds);
+        List<Voucher> result = new ArrayList<>(vouchers.size());
+        for (Voucher voucher : vouchers) {
+            Long stock = stocks.get(voucher.getId());
+            if (stock != null) {
+                voucher = BeanUtil.copyProperties(voucher, Voucher.class);
+                voucher.setStock((int) Math.max(0, stock));
+            }
+            result.add(voucher);
+        }
         // 返回结果
-        return Result.ok(vouchers);
+        return Result.ok(result);
+    }
+
+    @Override
+    public void addVoucher(Voucher voucher) {
+        save(voucher);
+        //删除店铺优惠券列表缓存
+        evictShopVouchers(voucher.getShopId());
+    }
+
+    /**
+     * 修改优惠券，删除修改前后所属店铺的优惠券列表缓存
+     */
+    @Override
+    public boolean updateById(Voucher voucher) {
+        Voucher old = getById(voucher.getId());
+        boolean updated = super.updateById(voucher);
+        if (old != null) {
+            evictShopVouchers(old.getShopId());
+        }
+        if (voucher.getShopId() != null && (old == null || !voucher.getShopId().equals(old.getShopId()))) {
+            evictShopVouchers(voucher.getShopId());
+        }
+        return updated;
+    }
+
+    /**
+     * 删除优惠券，删除所属店铺的优惠券列表缓存
+     */
+    @Override
+    public boolean removeById(Serializable id) {
+        Voucher old = getById(id);
+        boolean removed = super.removeById(id);
+        if (old != null) {
+            evictShopVouchers(old.getShopId());
+        }
+        return removed;
     }
 
     @Override
@@ -52,7 +128,37 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //将优惠券库存信息存储到Redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        //将优惠券库存、活动时间存储到Redis中（指定了分片数则拆分成多个分片）
+        //开启预热时，离开始时间还远的优惠券只登记分片数，由预热任务在开始前加载
+        int shards = voucher.getStockShards() == null ? 1 : voucher.getStockShards();
+        SeckillPreheatTask preheatTask = seckillPreheatTask.getIfAvailable();
+        if (preheatTask != null && preheatTask.defers(voucher.getBeginTime())) {
+            seckillStockRouter.registerShards(voucher.getId(), shards);
+        } else {
+            seckillStockRouter.initStock(voucher.getId(), voucher.getStock(), shards, voucher.getBeginTime(), voucher.getEndTime());
+        }
+        //排队放行速率
+        if(voucher.getAdmitRate() != null){
+            seckillWaitingRoom.setRate(voucher.getId(), voucher.getAdmitRate());
+        }
+        //删除店铺优惠券列表缓存
+        evictShopVouchers(voucher.getShopId());
+    }
+
+    /**
+     * 删除店铺的优惠券列表缓存
+     * 在事务中时等事务提交后再删：提交前删除的话，并发的查询会读到旧列表重新写入缓存，新优惠券在缓存过期前都看不到
+     */
+    private void evictShopVouchers(Long shopId) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            cacheClient.delete(CACHE_VOUCHER_SHOP_KEY + shopId);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                cacheClient.delete(CACHE_VOUCHER_SHOP_KEY + shopId);
+            }
+        });
     }
 }
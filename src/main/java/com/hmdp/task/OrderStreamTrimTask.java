@@ -0,0 +1,211 @@
+package com.hmdp.task;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.utils.StreamArchive;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import static com.hmdp.constant.RedisConstants.LOCK_STREAM_TRIM_KEY;
+import static com.hmdp.constant.RedisConstants.STREAM_ARCHIVE_OWNER_KEY;
+import static com.hmdp.constant.RedisConstants.STREAM_ORDERS_KEY;
+
+/**
+ *  订单消息队列裁剪任务
+ *  stream.orders 中所有消费者组都已确认的消息才能裁掉：对每个组取 有pending时最早pending的消息id，否则最后投递的消息id之后，
+ *  所有组取最小值，再减去保留时间，得到裁剪边界。边界之前的消息先按批归档到本地分段文件，再 XTRIM MINID 边界。
+ *  归档文件写在本地目录，为了让所有归档尽量集中在一处，裁剪由一个归档所有者执行：所有者标识（默认取节点标识）以租约形式
+ *  写在 stream.orders:archive:owner，所有者每次裁剪时续约；所有者下线、改名后租约过期，由其他节点接管，消息队列不会因此停止裁剪。
+ *  接管后新的归档写在接管节点的目录里，归档目录挂载在共享存储上时归档仍在一处，否则需要把各节点的归档文件合并后再重放。
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.seckill.stream-trim", name = "enabled", havingValue = "true", matchIfMissing = true)
+public class OrderStreamTrimTask {
+
+    //抢占或续约归档所有者租约
+    private final static DefaultRedisScript<Long> ARCHIVE_OWNER_SCRIPT;
+    static {
+        ARCHIVE_OWNER_SCRIPT = new DefaultRedisScript<>();
+        ARCHIVE_OWNER_SCRIPT.setLocation(new ClassPathResource("archive_owner.lua"));
+        ARCHIVE_OWNER_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private StreamArchive streamArchive;
+
+    //已确认的消息至少保留多久（毫秒），方便排查问题
+    @Value("${hmdp.seckill.stream-trim.retain-ms:600000}")
+    private long retainMillis;
+    //每批归档的消息数
+    @Value("${hmdp.seckill.stream-trim.batch-size:1000}")
+    private int batchSize;
+    //归档所有者标识，为空时取节点标识
+    @Value("${hmdp.seckill.stream-trim.archive-owner:}")
+    private String archiveOwner;
+    //归档所有者租约有效期（毫秒），必须大于裁剪间隔
+    @Value("${hmdp.seckill.stream-trim.owner-lease-ms:300000}")
+    private long ownerLeaseMillis;
+    @Value("${hmdp.seckill.stream-trim.interval-ms:60000}")
+    private long intervalMillis;
+    @Value("${hmdp.seckill.consumer.node-id:}")
+    private String nodeId;
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    //上一次看到的归档所有者，所有者变化时才打印日志
+    private String lastSeenOwner;
+
+    @PostConstruct
+    private void init() {
+        if (StrUtil.isBlank(archiveOwner)) {
+            archiveOwner = StrUtil.isBlank(nodeId) ? NetUtil.getLocalHostName() + ":" + serverPort : nodeId;
+        }
+        if (ownerLeaseMillis <= intervalMillis) {
+            throw new IllegalStateException("hmdp.seckill.stream-trim.owner-lease-ms必须大于interval-ms，否则所有者来不及续约");
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.stream-trim.interval-ms:60000}")
+    public void trim() {
+        RLock lock = redissonClient.getLock(LOCK_STREAM_TRIM_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            if (!isArchiveOwner()) {
+                return;
+            }
+            streamArchive.purgeExpired();
+            RecordId boundary = safeBoundary();
+            if (boundary == null) {
+                return;
+            }
+            // 1.归档边界之前的消息
+            long archived = archiveBefore(boundary);
+            if (archived == 0) {
+                return;
+            }
+            // 2.XTRIM stream.orders MINID boundary（Redis 6.2+）
+            Long trimmed = stringRedisTemplate.execute((RedisCallback<Long>) connection -> (Long) connection.execute("XTRIM",
+                    STREAM_ORDERS_KEY.getBytes(StandardCharsets.UTF_8),
+                    "MINID".getBytes(StandardCharsets.UTF_8),
+                    boundary.getValue().getBytes(StandardCharsets.UTF_8)));
+            log.info("订单消息队列归档{}条，裁剪{}条，边界：{}", archived, trimmed, boundary);
+        } catch (Exception e) {
+            log.error("订单消息队列裁剪异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 当前节点是否为归档所有者：没有所有者（或租约已过期）时抢占，是所有者时续约
+     */
+    private boolean isArchiveOwner() {
+        Long result = stringRedisTemplate.execute(ARCHIVE_OWNER_SCRIPT, Collections.singletonList(STREAM_ARCHIVE_OWNER_KEY),
+                archiveOwner, String.valueOf(ownerLeaseMillis));
+        String owner = result != null && result == 1 ? archiveOwner : stringRedisTemplate.opsForValue().get(STREAM_ARCHIVE_OWNER_KEY);
+        if (!Objects.equals(owner, lastSeenOwner)) {
+            if (archiveOwner.equals(owner)) {
+                log.warn("当前节点{}成为订单消息队列的归档所有者（上一个所有者：{}），之后的归档写入本节点的归档目录", archiveOwner, lastSeenOwner);
+            } else {
+                log.warn("订单消息队列由{}归档裁剪，当前节点{}跳过；该节点停止续约{}ms后由其他节点接管", owner, archiveOwner, ownerLeaseMillis);
+            }
+            lastSeenOwner = owner;
+        }
+        return archiveOwner.equals(owner);
+    }
+
+    /**
+     * 裁剪边界：小于该id的消息已被所有消费者组确认，且超过了保留时间
+     * @return 没有可裁剪的消息时返回null
+     */
+    private RecordId safeBoundary() {
+        long boundary = System.currentTimeMillis() - retainMillis;
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(STREAM_ORDERS_KEY);
+        if (groups.size() == 0) {
+            //没有消费者组，消息还没人消费，不能裁剪
+            return null;
+        }
+        RecordId min = RecordId.of(boundary, 0);
+        for (StreamInfo.XInfoGroup group : groups) {
+            RecordId groupBoundary;
+            if (group.pendingCount() > 0) {
+                PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(STREAM_ORDERS_KEY, group.groupName());
+                groupBoundary = RecordId.of(summary.minMessageId());
+            } else {
+                RecordId delivered = RecordId.of(group.lastDeliveredId());
+                groupBoundary = RecordId.of(delivered.getTimestamp(), delivered.getSequence() + 1);
+            }
+            if (compare(groupBoundary, min) < 0) {
+                min = groupBoundary;
+            }
+        }
+        return min.getTimestamp() == 0 ? null : min;
+    }
+
+    /**
+     * 按批 XRANGE 读出边界之前的消息并归档（之前已归档但没来得及裁剪的消息由归档跳过）
+     * @return 边界之前的消息数
+     */
+    private long archiveBefore(RecordId boundary) throws Exception {
+        long archived = 0;
+        String start = "0-0";
+        while (true) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                    STREAM_ORDERS_KEY, Range.closed(start, boundary.getValue()), Limit.limit().count(batchSize));
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(records == null ? 0 : records.size());
+            if (records != null) {
+                for (MapRecord<String, Object, Object> record : records) {
+                    //边界本身不归档（MINID只裁剪小于边界的消息）
+                    if (compare(record.getId(), boundary) < 0) {
+                        batch.add(record);
+                    }
+                }
+            }
+            if (batch.isEmpty()) {
+                return archived;
+            }
+            streamArchive.append(batch);
+            archived += batch.size();
+            if (batch.size() < batchSize) {
+                return archived;
+            }
+            RecordId last = batch.get(batch.size() - 1).getId();
+            start = RecordId.of(last.getTimestamp(), last.getSequence() + 1).getValue();
+        }
+    }
+
+    private static int compare(RecordId a, RecordId b) {
+        int c = Long.compare(a.getTimestamp(), b.getTimestamp());
+        return c != 0 ? c : Long.compare(a.getSequence(), b.getSequence());
+    }
+}
@@ -0,0 +1,99 @@
+package com.hmdp.task;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderStatusRecorder;
+import com.hmdp.utils.OrderTimeoutQueue;
+import com.hmdp.utils.SeckillStockRouter;
+import com.hmdp.utils.SoldOutRegistry;
+import com.hmdp.utils.StockStreamHub;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ *  未支付订单超时取消任务
+ *  从超时队列 order:timeout 按批认领到期的订单（认领脚本把超时时间顺延，多个节点可以同时处理，不会重复认领），
+ *  一个事务内锁定仍未支付的订单、改为已取消、按优惠券归还数据库库存；
+ *  事务提交后再归还Redis库存、移除已下单用户、清除售罄标记，最后移出队列。
+ *  中途宕机的批次在顺延时间到后被重新认领，已取消/已支付的订单不会被重复处理；
+ *  事务已提交但Redis未归还的差异由对账任务修复。
+ *  默认关闭，hmdp.seckill.order-timeout.enabled=true 开启。
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.seckill.order-timeout", name = "enabled", havingValue = "true")
+public class OrderTimeoutTask {
+
+    @Resource
+    private OrderTimeoutQueue orderTimeoutQueue;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillStockRouter seckillStockRouter;
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+    @Resource
+    private StockStreamHub stockStreamHub;
+    @Resource
+    private OrderStatusRecorder orderStatusRecorder;
+
+    //每批取消的订单数
+    @Value("${hmdp.seckill.order-timeout.batch-size:200}")
+    private int batchSize;
+    //每次检查最多处理的批数，到期订单很多时剩下的留给下一轮，不长时间占用调度线程
+    @Value("${hmdp.seckill.order-timeout.max-batches:20}")
+    private int maxBatches;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order-timeout.interval-ms:1000}")
+    public void cancelExpired() {
+        for (int i = 0; i < maxBatches; i++) {
+            List<Long> due;
+            try {
+                due = orderTimeoutQueue.claimDue(batchSize);
+            } catch (Exception e) {
+                log.error("认领超时订单异常", e);
+                return;
+            }
+            if (due.isEmpty()) {
+                return;
+            }
+            try {
+                cancel(due);
+            } catch (Exception e) {
+                //留在队列中，顺延时间到后重新认领
+                log.error("取消超时订单异常：{}", due, e);
+                return;
+            }
+            if (due.size() < batchSize) {
+                return;
+            }
+        }
+    }
+
+    private void cancel(List<Long> due) {
+        // 1.事务内取消仍未支付的订单，归还数据库库存
+        List<VoucherOrder> cancelled = voucherOrderService.cancelUnpaidOrders(due);
+        // 2.事务提交后按优惠券归还Redis库存、移除已下单用户
+        Map<Long, List<Long>> byVoucher = cancelled.stream().collect(Collectors.groupingBy(
+                VoucherOrder::getVoucherId, Collectors.mapping(VoucherOrder::getUserId, Collectors.toList())));
+        for (Map.Entry<Long, List<Long>> entry : byVoucher.entrySet()) {
+            seckillStockRouter.releaseStock(entry.getKey(), entry.getValue());
+            soldOutRegistry.clear(entry.getKey());
+            stockStreamHub.publishChange(entry.getKey());
+        }
+        // 3.更新订单状态，移出队列（已支付、已取消的订单也一并移出）
+        orderStatusRecorder.cancelled(cancelled.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+        orderTimeoutQueue.remove(due);
+        if (!cancelled.isEmpty()) {
+            log.info("取消超时未支付订单{}条，涉及优惠券{}个", cancelled.size(), byVoucher.size());
+        }
+    }
+}
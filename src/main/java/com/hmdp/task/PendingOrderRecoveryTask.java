@@ -0,0 +1,141 @@
+package com.hmdp.task;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderStatusRecorder;
+import com.hmdp.utils.OrderStreamMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.constant.RedisConstants.STREAM_ORDERS_DLQ_KEY;
+import static com.hmdp.constant.RedisConstants.STREAM_ORDERS_GROUP;
+import static com.hmdp.constant.RedisConstants.STREAM_ORDERS_KEY;
+
+/**
+ *  订单消息pending-list恢复任务
+ *  消费者处理失败（或消费者宕机）时消息留在pending-list中。本任务定期 XPENDING 查看空闲超过阈值的消息，
+ *  用 XCLAIM 认领后重试；投递次数超过上限的消息转入死信队列 stream.orders.dlq 并ACK，
+ *  一条坏消息不会再卡住消费者，正常消息的消费也不受影响。
+ *  XCLAIM 带最小空闲时间，多个节点同时认领同一条消息时只有一个能成功。
+ */
+@Slf4j
+@Component
+public class PendingOrderRecoveryTask {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private OrderStatusRecorder orderStatusRecorder;
+    @Resource
+    private OrderStreamMetrics orderStreamMetrics;
+
+    //消息空闲超过该时间（毫秒）才认领，避免抢走正在处理中的消息
+    @Value("${hmdp.seckill.recovery.min-idle-ms:30000}")
+    private long minIdleMillis;
+    //最大投递次数，超过后转入死信队列
+    @Value("${hmdp.seckill.recovery.max-deliveries:5}")
+    private long maxDeliveries;
+    //每轮最多检查的pending消息数
+    @Value("${hmdp.seckill.recovery.batch-size:100}")
+    private long batchSize;
+    @Value("${hmdp.seckill.consumer.node-id:}")
+    private String nodeId;
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    //认领消息使用的消费者名称
+    private String consumerName;
+
+    @PostConstruct
+    private void init() {
+        if (StrUtil.isBlank(nodeId)) {
+            nodeId = NetUtil.getLocalHostName() + ":" + serverPort;
+        }
+        consumerName = nodeId + "-recovery";
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.recovery.interval-ms:5000}")
+    public void recover() {
+        // 1.XPENDING stream.orders g1 - + batchSize
+        PendingMessages pending;
+        try {
+            pending = stringRedisTemplate.opsForStream()
+                    .pending(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, Range.unbounded(), batchSize);
+        } catch (Exception e) {
+            log.error("查询pending-list异常", e);
+            return;
+        }
+        for (PendingMessage message : pending) {
+            // 2.只处理空闲超过阈值的消息
+            if (message.getElapsedTimeSinceLastDelivery().toMillis() < minIdleMillis) {
+                continue;
+            }
+            try {
+                recover(message);
+            } catch (Exception e) {
+                //仍留在pending-list中，等下一轮重试，投递次数会累加
+                log.error("pending消息{}处理异常，已投递{}次", message.getIdAsString(), message.getTotalDeliveryCount(), e);
+            }
+        }
+    }
+
+    private void recover(PendingMessage message) {
+        // 3.XCLAIM stream.orders g1 consumerName minIdle id，认领的同时投递次数+1
+        List<MapRecord<String, Object, Object>> claimed = stringRedisTemplate.opsForStream().claim(
+                STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, consumerName, Duration.ofMillis(minIdleMillis), message.getId());
+        if (claimed == null || claimed.isEmpty()) {
+            //已被其他节点认领
+            return;
+        }
+        MapRecord<String, Object, Object> record = claimed.get(0);
+        // 4.超过投递次数上限，转入死信队列
+        if (message.getTotalDeliveryCount() >= maxDeliveries) {
+            deadLetter(record, message.getTotalDeliveryCount());
+            return;
+        }
+        // 5.重试创建订单
+        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+        String failReason = voucherOrderService.handleVoucherOrder(voucherOrder);
+        stringRedisTemplate.opsForStream().acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, record.getId());
+        orderStreamMetrics.processed(record.getId(), failReason);
+    }
+
+    /**
+     * 转入死信队列：原消息内容 + 原消息id + 投递次数，XADD到死信队列后再ACK原消息
+     */
+    private void deadLetter(MapRecord<String, Object, Object> record, long deliveries) {
+        Map<String, String> values = new HashMap<>();
+        record.getValue().forEach((k, v) -> values.put(String.valueOf(k), String.valueOf(v)));
+        values.put("sourceId", record.getId().getValue());
+        values.put("deliveries", String.valueOf(deliveries));
+        stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(STREAM_ORDERS_DLQ_KEY).ofMap(values));
+        stringRedisTemplate.opsForStream().acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, record.getId());
+        log.error("订单消息{}投递{}次仍处理失败，已转入死信队列：{}", record.getId(), deliveries, values);
+        orderStreamMetrics.failure("死信");
+        //消息内容可能已损坏，取不到订单id就不更新状态
+        String orderId = values.get("id");
+        if (StrUtil.isNumeric(orderId)) {
+            orderStatusRecorder.failed(Long.valueOf(orderId), "处理失败");
+        }
+    }
+}
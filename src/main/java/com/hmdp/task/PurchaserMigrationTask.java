@@ -0,0 +1,78 @@
+package com.hmdp.task;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.SeckillStockRouter;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+
+import static com.hmdp.constant.RedisConstants.LOCK_PURCHASER_MIGRATE_KEY;
+
+/**
+ *  已下单用户SET -> bitmap 在线迁移任务（hmdp.seckill.purchasers.mode=bitmap 时启用）
+ *  按voucher_id游标逐批把秒杀券的旧SET迁移到bitmap，迁移期间秒杀脚本同时检查两者，不影响抢购。
+ *  所有优惠券都迁移过一遍后不再执行。
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.seckill.purchasers", name = "mode", havingValue = "bitmap")
+public class PurchaserMigrationTask {
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private SeckillStockRouter seckillStockRouter;
+    @Resource
+    private RedissonClient redissonClient;
+
+    //每轮迁移的优惠券数量
+    @Value("${hmdp.seckill.purchasers.migrate-batch-size:20}")
+    private int batchSize;
+    //每批迁移的用户数
+    @Value("${hmdp.seckill.reconcile.scan-size:500}")
+    private int scanSize;
+
+    //优惠券游标
+    private long cursor = 0;
+    private volatile boolean finished = false;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.purchasers.migrate-interval-ms:10000}")
+    public void migrate() {
+        if (finished) {
+            return;
+        }
+        RLock lock = redissonClient.getLock(LOCK_PURCHASER_MIGRATE_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .gt("voucher_id", cursor).orderByAsc("voucher_id")
+                    .last("LIMIT " + batchSize).list();
+            if (vouchers.isEmpty()) {
+                finished = true;
+                log.info("已下单用户SET迁移到bitmap完成");
+                return;
+            }
+            for (SeckillVoucher voucher : vouchers) {
+                long migrated = seckillStockRouter.migratePurchasers(voucher.getVoucherId(), scanSize);
+                if (migrated > 0) {
+                    log.info("优惠券{}已下单用户迁移到bitmap：{}个", voucher.getVoucherId(), migrated);
+                }
+            }
+            cursor = vouchers.get(vouchers.size() - 1).getVoucherId();
+        } catch (Exception e) {
+            log.error("已下单用户迁移异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.hmdp.task;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillStockRouter;
+import com.hmdp.utils.SeckillWaitingRoom;
+import com.hmdp.utils.SoldOutRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static com.hmdp.constant.RedisConstants.LOCK_SECKILL_PREHEAT_KEY;
+
+/**
+ *  秒杀券预热任务
+ *  开始前 lead-minutes 分钟内（或已开始但还没加载，如预热时节点都不在线）的秒杀券：
+ *  1. 按数据库库存和活动时间把库存加载到Redis（分片数在创建时已登记）
+ *  2. 确保订单消息队列的消费者组存在
+ *  3. 查询一次店铺优惠券列表，写入列表缓存
+ *  4. 活动还没开始时，用模拟用户调用秒杀脚本（同步、异步各若干次），脚本在校验活动时间后就返回，不会扣减库存，
+ *     借此把脚本加载到Redis脚本缓存、建立连接、触发JIT编译，开抢第一秒不用再付这些冷启动开销
+ *  默认关闭（hmdp.seckill.preheat.enabled=true 开启）。是否开启只以本任务是否存在为准，创建优惠券时通过 {@link #defers} 判断是否推迟加载库存。
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.seckill.preheat", name = "enabled", havingValue = "true", matchIfMissing = false)
+public class SeckillPreheatTask {
+
+    //模拟调用使用的用户id和订单id，脚本返回"活动未开始"前不会用到
+    private static final long WARMUP_USER_ID = 0L;
+    private static final long WARMUP_ORDER_ID = 0L;
+    //离活动开始不足该时间（秒）时不再模拟调用，避免模拟用户真的抢到
+    private static final long WARMUP_MARGIN_SECONDS = 30L;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillStockRouter seckillStockRouter;
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+    @Resource
+    private RedissonClient redissonClient;
+
+    //提前多少分钟预热
+    @Value("${hmdp.seckill.preheat.lead-minutes:10}")
+    private long leadMinutes;
+    //模拟调用次数
+    @Value("${hmdp.seckill.preheat.warmup-calls:200}")
+    private int warmupCalls;
+
+    /**
+     * 新建的秒杀券是否推迟到预热时再加载库存：离开始时间还超过 lead-minutes 分钟
+     */
+    public boolean defers(LocalDateTime beginTime) {
+        return beginTime != null && beginTime.isAfter(LocalDateTime.now().plusMinutes(leadMinutes));
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preheat.interval-ms:30000}")
+    public void preheat() {
+        //多个节点只需要一个节点加载库存
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_PREHEAT_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            // WHERE begin_time <= now + lead AND end_time > now
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .le("begin_time", now.plusMinutes(leadMinutes)).gt("end_time", now).list();
+            for (SeckillVoucher voucher : vouchers) {
+                if (seckillStockRouter.isStockLoaded(voucher.getVoucherId())) {
+                    continue;
+                }
+                try {
+                    preheat(voucher);
+                } catch (Exception e) {
+                    log.error("优惠券{}预热异常", voucher.getVoucherId(), e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void preheat(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        // 1.加载库存和活动时间
+        int shards = seckillStockRouter.shardCount(voucherId);
+        seckillStockRouter.initStock(voucherId, voucher.getStock(), shards, voucher.getBeginTime(), voucher.getEndTime());
+        // 2.确保消费者组存在
+        voucherOrderService.ensureStreamGroup();
+        // 3.写入店铺优惠券列表缓存
+        Voucher info = voucherService.getById(voucherId);
+        if (info != null) {
+            voucherService.queryVoucherOfShop(info.getShopId());
+        }
+        // 4.模拟调用秒杀链路（只在离活动开始还有一段时间时，脚本会直接返回"活动未开始"）
+        if (voucher.getBeginTime() != null
+                && voucher.getBeginTime().isAfter(LocalDateTime.now().plusSeconds(WARMUP_MARGIN_SECONDS))) {
+            warmup(voucherId);
+        }
+        log.info("优惠券{}预热完成，库存：{}，分片数：{}", voucherId, voucher.getStock(), shards);
+    }
+
+    private void warmup(Long voucherId) {
+        for (int i = 0; i < warmupCalls; i++) {
+            soldOutRegistry.isSoldOut(voucherId);
+            seckillWaitingRoom.isAdmitted(voucherId, WARMUP_USER_ID, null);
+            int r = seckillStockRouter.execute(voucherId, WARMUP_USER_ID, WARMUP_ORDER_ID);
+            Integer async = seckillStockRouter.executeAsync(voucherId, WARMUP_USER_ID, WARMUP_ORDER_ID).join();
+            if (r != SeckillStockRouter.NOT_BEGUN || async != SeckillStockRouter.NOT_BEGUN) {
+                //活动已经开始，停止模拟调用
+                log.warn("优惠券{}预热时活动已开始，停止模拟调用", voucherId);
+                return;
+            }
+        }
+    }
+}
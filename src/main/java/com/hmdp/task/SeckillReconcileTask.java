@@ -0,0 +1,308 @@
+package com.hmdp.task;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillStockRouter;
+import com.hmdp.utils.SoldOutRegistry;
+import com.hmdp.utils.StockStreamHub;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.hmdp.constant.RedisConstants.LOCK_SECKILL_RECONCILE_KEY;
+import static com.hmdp.constant.RedisConstants.STREAM_ORDERS_GROUP;
+import static com.hmdp.constant.RedisConstants.STREAM_ORDERS_KEY;
+import static com.hmdp.constant.SystemConstants.ORDER_STATUS_CANCELLED;
+
+/**
+ *  秒杀库存/订单对账任务
+ *  每轮按voucher_id游标取一批秒杀券，对比：
+ *  1. Redis库存（各分片之和） 与 tb_seckill_voucher.stock
+ *  2. Redis已下单用户数（SCARD，bitmap模式为BITCOUNT） 与 tb_voucher_order中该券的订单数（走idx_voucher_user索引计数）
+ *  差值作为指标上报。开启修复后，在消息队列已全部消费完（没有在途订单）时，以数据库为准修复Redis：
+ *  库存用CAS写回，已下单用户用SSCAN + 按user_id游标遍历订单做双向比对。
+ *  消息队列是否消费完在每个优惠券读取Redis、数据库的前后各检查一次，两次都已消费完、且期间没有新消息才算没有在途订单；
+ *  分片模式下单时扣减库存和写入消息队列不是原子的，所以同一个差值要连续两轮对账都出现才修复。
+ *  活动已结束的优惠券不再对账，并移除它的指标。
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.seckill.reconcile", name = "enabled", havingValue = "true", matchIfMissing = true)
+public class SeckillReconcileTask {
+
+    private final static DefaultRedisScript<Long> STOCK_CAS_SCRIPT;
+    static {
+        STOCK_CAS_SCRIPT = new DefaultRedisScript<>();
+        STOCK_CAS_SCRIPT.setLocation(new ClassPathResource("stock_cas.lua"));
+        STOCK_CAS_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private SeckillStockRouter seckillStockRouter;
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+    @Resource
+    private StockStreamHub stockStreamHub;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    //每轮对账的优惠券数量
+    @Value("${hmdp.seckill.reconcile.batch-size:50}")
+    private int batchSize;
+    //遍历已下单用户、订单时每批的数量
+    @Value("${hmdp.seckill.reconcile.scan-size:500}")
+    private int scanSize;
+    //是否以数据库为准修复Redis
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean repair;
+
+    //优惠券游标，每轮从上次结束的位置继续
+    private long cursor = 0;
+    //优惠券id -> 差值指标
+    private final Map<Long, DiffGauges> gauges = new ConcurrentHashMap<>();
+    //优惠券id -> 上一轮发现的不一致（库存差值:订单差值），连续两轮相同才修复
+    private final Map<Long, String> mismatches = new ConcurrentHashMap<>();
+    private Counter mismatchCounter;
+    private Counter repairCounter;
+
+    @PostConstruct
+    private void init() {
+        mismatchCounter = meterRegistry.counter("seckill.reconcile.mismatch");
+        repairCounter = meterRegistry.counter("seckill.reconcile.repair");
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval-ms:60000}")
+    public void reconcile() {
+        //多个节点只需要一个节点对账
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_RECONCILE_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            // 1.按游标取一批秒杀券 WHERE voucher_id > cursor ORDER BY voucher_id LIMIT batchSize
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .gt("voucher_id", cursor).orderByAsc("voucher_id")
+                    .last("LIMIT " + batchSize).list();
+            if (vouchers.isEmpty()) {
+                cursor = 0;
+                return;
+            }
+            cursor = vouchers.get(vouchers.size() - 1).getVoucherId();
+            for (SeckillVoucher voucher : vouchers) {
+                try {
+                    reconcile(voucher);
+                } catch (Exception e) {
+                    log.error("优惠券{}对账异常", voucher.getVoucherId(), e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reconcile(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        //活动已结束，不再对账
+        if (voucher.getEndTime() != null && voucher.getEndTime().isBefore(LocalDateTime.now())) {
+            removeGauges(voucherId);
+            mismatches.remove(voucherId);
+            return;
+        }
+        // 0.消息队列中没有在途订单时，Redis和数据库应当完全一致，才允许修复；读取前后各检查一次
+        String drainedBefore = drainedAt();
+        // 1.Redis库存（分片之和），库存还没加载到Redis的跳过
+        List<String> stockKeys = seckillStockRouter.stockKeys(voucherId);
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(stockKeys);
+        if (stocks == null || stocks.stream().anyMatch(StrUtil::isBlank)) {
+            return;
+        }
+        long redisStock = stocks.stream().mapToLong(Long::parseLong).sum();
+        //活动结束后已下单用户bitmap已过期，不再对账
+        if (seckillStockRouter.purchasersExpired(voucher.getEndTime())) {
+            return;
+        }
+        // 2.Redis已下单用户数（SET为SCARD，bitmap为BITCOUNT）
+        long redisBuyers = seckillStockRouter.purchaserCount(voucherId);
+        // 3.数据库订单数（已取消的订单已归还库存、移除了已下单用户，不算）
+        long dbOrders = voucherOrderService.query().eq("voucher_id", voucherId)
+                .ne("status", ORDER_STATUS_CANCELLED).count();
+        // 4.数据库库存在读取订单数之后重新读取，与订单数对应同一时刻
+        SeckillVoucher latest = seckillVoucherService.getById(voucherId);
+        if (latest == null) {
+            return;
+        }
+        boolean quiescent = drainedBefore != null && drainedBefore.equals(drainedAt());
+        long stockDiff = redisStock - latest.getStock();
+        long orderDiff = redisBuyers - dbOrders;
+        DiffGauges diff = gauges(voucherId);
+        diff.stock.set(stockDiff);
+        diff.order.set(orderDiff);
+        if (stockDiff == 0 && orderDiff == 0) {
+            mismatches.remove(voucherId);
+            return;
+        }
+        //有在途订单时，Redis先于数据库扣减是正常现象，只有队列消费完后的差异才算不一致
+        if (!quiescent) {
+            return;
+        }
+        mismatchCounter.increment();
+        log.warn("优惠券{}数据不一致，Redis库存：{}，数据库库存：{}，Redis已下单用户：{}，数据库订单：{}",
+                voucherId, redisStock, latest.getStock(), redisBuyers, dbOrders);
+        //同一个差值连续两轮出现才修复，排除扣减库存后还没写入消息队列的订单
+        String mismatch = stockDiff + ":" + orderDiff;
+        if (!repair || !mismatch.equals(mismatches.put(voucherId, mismatch))) {
+            return;
+        }
+        mismatches.remove(voucherId);
+        if (orderDiff != 0) {
+            repairBuyers(voucherId);
+        }
+        if (stockDiff != 0) {
+            repairStock(voucherId, stockKeys, stocks, -stockDiff);
+        }
+        repairCounter.increment();
+    }
+
+    /**
+     * 修复库存：差值补到第一个分片上，用CAS写入，写入前被并发扣减过则放弃，等下一轮
+     */
+    private void repairStock(Long voucherId, List<String> stockKeys, List<String> stocks, long delta) {
+        long expected = Long.parseLong(stocks.get(0));
+        long target = expected + delta;
+        if (target < 0) {
+            log.warn("优惠券{}库存修复后为负数，跳过", voucherId);
+            return;
+        }
+        Long result = stringRedisTemplate.execute(STOCK_CAS_SCRIPT, Collections.singletonList(stockKeys.get(0)),
+                String.valueOf(expected), String.valueOf(target));
+        if (result == null || result != 1) {
+            return;
+        }
+        stockStreamHub.publishChange(voucherId);
+        if (delta > 0) {
+            //库存回补，清除售罄标记
+            soldOutRegistry.clear(voucherId);
+        }
+    }
+
+    /**
+     * 修复已下单用户
+     * 1.分批遍历Redis中的用户（SET为SSCAN，bitmap为GETRANGE），数据库中没有订单的移除（订单在落库时被丢弃）
+     * 2.按user_id游标遍历数据库订单，Redis中没有的补上
+     */
+    private void repairBuyers(Long voucherId) {
+        seckillStockRouter.scanPurchasers(voucherId, scanSize, batch -> removeBuyersWithoutOrder(voucherId, batch));
+        long userCursor = 0;
+        while (true) {
+            // SELECT user_id FROM tb_voucher_order WHERE voucher_id = ? AND status <> 4 AND user_id > ? ORDER BY user_id LIMIT scanSize
+            List<VoucherOrder> orders = voucherOrderService.query().select("user_id")
+                    .eq("voucher_id", voucherId).ne("status", ORDER_STATUS_CANCELLED).gt("user_id", userCursor)
+                    .orderByAsc("user_id").last("LIMIT " + scanSize).list();
+            if (orders.isEmpty()) {
+                break;
+            }
+            for (VoucherOrder order : orders) {
+                seckillStockRouter.addPurchaser(voucherId, order.getUserId());
+            }
+            userCursor = orders.get(orders.size() - 1).getUserId();
+        }
+    }
+
+    private void removeBuyersWithoutOrder(Long voucherId, List<Long> userIds) {
+        String drainedBefore = drainedAt();
+        Set<Long> withOrder = voucherOrderService.query().select("user_id")
+                .eq("voucher_id", voucherId).ne("status", ORDER_STATUS_CANCELLED).in("user_id", userIds).list()
+                .stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        //查询期间有新订单进入消息队列，这批用户可能正在落库，跳过
+        if (drainedBefore == null || !drainedBefore.equals(drainedAt())) {
+            return;
+        }
+        Set<Long> without = new HashSet<>(userIds);
+        without.removeAll(withOrder);
+        if (!without.isEmpty()) {
+            log.warn("优惠券{}移除没有订单的已下单用户：{}", voucherId, without);
+            without.forEach(userId -> seckillStockRouter.removePurchaser(voucherId, userId));
+        }
+    }
+
+    /**
+     * 消息队列已全部消费并确认（没有pending消息，且最后投递的消息就是最后一条消息）时，返回最后一条消息的id，否则返回null
+     * 前后两次返回同一个id，说明期间既没有在途订单，也没有新订单
+     */
+    private String drainedAt() {
+        StreamInfo.XInfoStream stream = stringRedisTemplate.opsForStream().info(STREAM_ORDERS_KEY);
+        for (StreamInfo.XInfoGroup group : stringRedisTemplate.opsForStream().groups(STREAM_ORDERS_KEY)) {
+            if (!STREAM_ORDERS_GROUP.equals(group.groupName())) {
+                continue;
+            }
+            String last = stream.lastGeneratedId();
+            boolean drained = group.pendingCount() == 0 && Objects.equals(last, group.lastDeliveredId());
+            return drained ? last : null;
+        }
+        return null;
+    }
+
+    private DiffGauges gauges(Long voucherId) {
+        return gauges.computeIfAbsent(voucherId, id -> new DiffGauges(id.toString()));
+    }
+
+    private void removeGauges(Long voucherId) {
+        DiffGauges diff = gauges.remove(voucherId);
+        if (diff != null) {
+            meterRegistry.remove(diff.stockGauge);
+            meterRegistry.remove(diff.orderGauge);
+        }
+    }
+
+    /**
+     * 一个优惠券的差值指标
+     */
+    private class DiffGauges {
+        private final AtomicLong stock = new AtomicLong();
+        private final AtomicLong order = new AtomicLong();
+        private final Gauge stockGauge;
+        private final Gauge orderGauge;
+
+        DiffGauges(String voucherId) {
+            stockGauge = Gauge.builder("seckill.reconcile.stock.diff", stock, AtomicLong::get)
+                    .tag("voucherId", voucherId).register(meterRegistry);
+            orderGauge = Gauge.builder("seckill.reconcile.order.diff", order, AtomicLong::get)
+                    .tag("voucherId", voucherId).register(meterRegistry);
+        }
+    }
+}
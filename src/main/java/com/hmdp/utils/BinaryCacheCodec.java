@@ -0,0 +1,226 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.convert.ConvertException;
+import cn.hutool.json.JSONException;
+import cn.hutool.json.JSONUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  紧凑二进制编解码（反射）
+ *  不写字段名，按字段名排序依次写字段值：每个字段一个标记字节（0为null），Long、Integer、Double、Boolean、String、LocalDateTime
+ *  直接写二进制，其它类型的字段写JSON。开头4个字节是类结构（字段名+类型）的哈希，类的字段变化后旧数据解码返回null，当作未命中重新加载。
+ *  只支持有无参构造器的普通实体类（实体、DTO）。列表为 [元素个数] + 每个元素 [长度][元素编码]。
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final byte NULL = 0;
+    private static final byte PRESENT = 1;
+
+    //类 -> 结构
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] encode(Object value) {
+        Schema schema = schema(value.getClass());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(schema.hash);
+            for (Field field : schema.fields) {
+                write(out, field, field.get(value));
+            }
+        } catch (IOException | IllegalAccessException e) {
+            throw new IllegalStateException("缓存编码失败：" + value.getClass().getName(), e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, int offset, int length, Class<R> type) {
+        Schema schema = schema(type);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, length))) {
+            if (in.readInt() != schema.hash) {
+                return null;
+            }
+            R r = type.cast(schema.constructor.newInstance());
+            for (Field field : schema.fields) {
+                Object value = read(in, field);
+                if (value != null) {
+                    field.set(r, value);
+                }
+            }
+            return r;
+        } catch (IOException | JSONException | ConvertException e) {
+            //数据不完整或损坏
+            return null;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("缓存解码失败：" + type.getName(), e);
+        }
+    }
+
+    @Override
+    public byte[] encodeList(List<?> values) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 * (values.size() + 1));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(values.size());
+            for (Object value : values) {
+                byte[] element = encode(value);
+                out.writeInt(element.length);
+                out.write(element);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存编码失败：List", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public <R> List<R> decodeList(byte[] bytes, int offset, int length, Class<R> type) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int count = buffer.getInt();
+        //每个元素至少有4个字节的长度
+        if (count < 0 || count > buffer.remaining() / 4) {
+            return null;
+        }
+        List<R> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < 4) {
+                return null;
+            }
+            int size = buffer.getInt();
+            if (size < 0 || size > buffer.remaining()) {
+                return null;
+            }
+            R r = decode(bytes, buffer.position(), size, type);
+            if (r == null) {
+                return null;
+            }
+            values.add(r);
+            buffer.position(buffer.position() + size);
+        }
+        return values;
+    }
+
+    private static void write(DataOutputStream out, Field field, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        out.writeByte(PRESENT);
+        Class<?> type = field.getType();
+        if (type == Long.class || type == long.class) {
+            out.writeLong((Long) value);
+        } else if (type == Integer.class || type == int.class) {
+            out.writeInt((Integer) value);
+        } else if (type == Double.class || type == double.class) {
+            out.writeDouble((Double) value);
+        } else if (type == Boolean.class || type == boolean.class) {
+            out.writeBoolean((Boolean) value);
+        } else if (type == String.class) {
+            writeString(out, (String) value);
+        } else if (type == LocalDateTime.class) {
+            LocalDateTime time = (LocalDateTime) value;
+            out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(time.getNano());
+        } else {
+            writeString(out, JSONUtil.toJsonStr(value));
+        }
+    }
+
+    private static Object read(DataInputStream in, Field field) throws IOException {
+        if (in.readByte() == NULL) {
+            return null;
+        }
+        Class<?> type = field.getType();
+        if (type == Long.class || type == long.class) {
+            return in.readLong();
+        } else if (type == Integer.class || type == int.class) {
+            return in.readInt();
+        } else if (type == Double.class || type == double.class) {
+            return in.readDouble();
+        } else if (type == Boolean.class || type == boolean.class) {
+            return in.readBoolean();
+        } else if (type == String.class) {
+            return readString(in);
+        } else if (type == LocalDateTime.class) {
+            return LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+        }
+        return JSONUtil.toBean(readString(in), type);
+    }
+
+    //字符串：长度（int）+ UTF-8字节，不用writeUTF，避免64KB的长度限制
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    //长度不合法（负数或超过剩余字节数）说明数据损坏，按数据不完整处理
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new EOFException("字符串长度不合法：" + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Schema schema(Class<?> type) {
+        return schemas.computeIfAbsent(type, Schema::new);
+    }
+
+    /**
+     * 类结构：按字段名排序的实例字段（包括父类字段），以及字段名+类型的哈希
+     */
+    private static class Schema {
+        private final List<Field> fields = new ArrayList<>();
+        private final Constructor<?> constructor;
+        private final int hash;
+
+        Schema(Class<?> type) {
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
+            fields.sort(Comparator.comparing(Field::getName));
+            StringBuilder signature = new StringBuilder(type.getName());
+            for (Field field : fields) {
+                signature.append(';').append(field.getName()).append(':').append(field.getType().getName());
+            }
+            this.hash = signature.toString().hashCode();
+            try {
+                this.constructor = type.getDeclaredConstructor();
+                this.constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException("二进制编码需要无参构造器：" + type.getName(), e);
+            }
+        }
+    }
+}
@@ -1,33 +1,159 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.constant.RedisConstants;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  *  Redis缓存工具类
+ *  二级缓存（可选）：配置的键前缀在本机内存中再缓存一份反序列化好的对象（L1，按前缀各一个LRU，限制数量和有效期），
+ *  命中时不再访问Redis、不再解析JSON。数据更新时调用 delete 删除Redis缓存，并通过发布订阅通知所有节点删除本地缓存；
+ *  消息丢失时本地缓存最多在有效期后过期，旧数据存在的时间不超过本地缓存有效期。
+ *  本地缓存的对象被多个请求共享，调用方不能修改返回的对象。
+ *  缓存未命中时同一节点内同一个key只有一个线程查询数据库（single-flight），其他线程等待它的结果；
+ *  互斥锁版本再用Redis锁协调多个节点，每个节点只有加载数据的那个线程去竞争Redis锁。
+ *  提前刷新（refresh-ahead）版本：以逻辑过期方式存储，统计每个key的访问次数，访问次数达到阈值的热点key
+ *  在逻辑过期前由后台线程提前从数据库重新加载，热点数据不会过期，也就不会读到旧数据或未命中。
+ *  缓存值按字节读写，编码方式（JSON/二进制、是否压缩）由 CacheCodecs 按键前缀决定；空字节是缓存的空值。
  */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
     
     private final StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private CacheCodecs cacheCodecs;
+
+    //是否开启本地缓存
+    @Value("${hmdp.cache.local.enabled:false}")
+    private boolean localEnabled;
+    //开启本地缓存的键前缀
+    @Value("${hmdp.cache.local.prefixes:cache:shop:}")
+    private String[] localPrefixes;
+    //每个前缀最多缓存的数量
+    @Value("${hmdp.cache.local.max-size:1000}")
+    private int localMaxSize;
+    //本地缓存有效期（毫秒）
+    @Value("${hmdp.cache.local.ttl-ms:5000}")
+    private long localTtlMillis;
+
+    //等待其他线程加载数据的超时时间（毫秒）
+    @Value("${hmdp.cache.load.timeout-ms:3000}")
+    private long loadTimeoutMillis;
+
+    //是否开启提前刷新
+    @Value("${hmdp.cache.refresh-ahead.enabled:false}")
+    private boolean refreshAheadEnabled;
+    //每个检查间隔内访问次数达到该值的key为热点key
+    @Value("${hmdp.cache.refresh-ahead.hot-threshold:10}")
+    private long hotThreshold;
+    //逻辑过期前多久提前刷新（毫秒）
+    @Value("${hmdp.cache.refresh-ahead.ahead-ms:60000}")
+    private long aheadMillis;
+    //最多统计的key数量
+    @Value("${hmdp.cache.refresh-ahead.max-keys:10000}")
+    private int maxTrackedKeys;
+
+    //key -> 访问统计（提前刷新）
+    private final Map<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+    //超出统计数量、没有访问统计的key中正在异步刷新的key
+    private final Set<String> untrackedRefreshing = ConcurrentHashMap.newKeySet();
+    //key -> 正在进行的加载
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    //本地缓存空值标记（数据库中不存在）
+    private static final Object NULL_VALUE = new Object();
+    //redis缓存空值（数据库中不存在）
+    private static final byte[] NULL_BYTES = new byte[0];
+    //键前缀 -> 本地缓存
+    private final Map<String, LRUCache<String, Object>> localCaches = new HashMap<>();
     
     public CacheClient(StringRedisTemplate stringRedisTemplate){
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @PostConstruct
+    private void init() {
+        if (!localEnabled) {
+            return;
+        }
+        for (String prefix : localPrefixes) {
+            if (StrUtil.isNotBlank(prefix)) {
+                localCaches.put(prefix.trim(), new LRUCache<>(localMaxSize, localTtlMillis));
+            }
+        }
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 删除缓存，并通知所有节点删除本地缓存（数据更新后调用）
+     * @param key
+     */
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        LRUCache<String, Object> local = localCache(key);
+        if (local != null) {
+            local.remove(key);
+            stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        LRUCache<String, Object> local = localCache(key);
+        if (local != null) {
+            local.remove(key);
+        }
+    }
+
+    //键所属前缀的本地缓存，未开启本地缓存的返回null
+    private LRUCache<String, Object> localCache(String key) {
+        for (Map.Entry<String, LRUCache<String, Object>> entry : localCaches.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
     /**
      * 写入redis（TTL过期时间）
      * @param key
@@ -36,7 +162,7 @@ public class CacheClient {
      * @param unit
      */
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        setRaw(key, cacheCodecs.encode(key, value), time, unit);
     }
 
     /**
@@ -47,12 +173,9 @@ public class CacheClient {
      * @param unit
      */
     public void setWithLogicalExpire(String key,Object value,Long time,TimeUnit unit){
-        //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        //写入redis
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(value));
+        //设置逻辑过期，写入redis（写入的是带过期时间的数据，而不是value本身）
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(unit.toSeconds(time));
+        setRaw(key, cacheCodecs.encode(key, value, expireTime), null, null);
     }
 
     //缓存穿透
@@ -77,55 +200,303 @@ public class CacheClient {
      */
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit unit){
         String key = keyPrefix + id;
+        //先查本地缓存
+        LRUCache<String, Object> local = localCache(key);
+        if(local != null){
+            Object cached = local.get(key, false);
+            if(cached != null){
+                return cached == NULL_VALUE ? null : type.cast(cached);
+            }
+        }
         //去redis查询缓存中是否存在数据
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] cached = getRaw(key);
 
-        //存在，直接返回
-        if(StrUtil.isNotBlank(json)){
-            return JSONUtil.toBean(json, type);
+        //存在，直接返回（无法解码的数据，如类的字段已变化，按未命中处理）
+        if(cached != null && cached.length > 0){
+            R r = cacheCodecs.decode(cached, type);
+            if(r != null){
+                putLocal(local, key, r);
+                return r;
+            }
         }
         
         //判断缓存中的值是否为缓存的空值（解决缓存穿透问题）
-        //没有通过isNotBlank判断，证明要么为空字符串，要么为null（不存在）
-        //如果为空字符串就是我们缓存的空数据，证明数据库没有，直接返回，解决缓存穿透。如果为null，就证明没有缓存，去数据库查询。
-        if(json != null){   //不是null就是空字符串，直接返回空
+        //如果为空字节就是我们缓存的空数据，证明数据库没有，直接返回，解决缓存穿透。如果为null，就证明没有缓存，去数据库查询。
+        if(cached != null && cached.length == 0){
+            putLocal(local, key, null);
             return null;
         }
         
-        //根据id去数据库查询
+        //根据id去数据库查询（同一个key只有一个线程查询，其他线程等它的结果）
+        return loadOnce(key, () -> load(key, id, dbFallback, time, unit));
+    }
+
+    /**
+     * 根据id查询数据，无缓存时加互斥锁查询数据库（解决缓存击穿，并带着解决缓存穿透）
+     * 同一节点内由single-flight合并成一次加载，只有加载的线程竞争Redis锁（lock:{key}），
+     * 没抢到锁说明其他节点正在重建缓存，轮询缓存直到重建完成或抢到锁。
+     * @param keyPrefix 键前缀
+     * @param id id
+     * @param type  查询数据类型
+     * @param dbFallback    查询数据库语句
+     * @param time  缓存时间
+     * @param unit  缓存时间单位
+     * @return  返回查询数据
+     * @param <R>
+     * @param <ID>
+     */
+    public <R,ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        LRUCache<String, Object> local = localCache(key);
+        if(local != null){
+            Object cached = local.get(key, false);
+            if(cached != null){
+                return cached == NULL_VALUE ? null : type.cast(cached);
+            }
+        }
+        Cached<R> hit = getCached(key, type);
+        if(hit != null){
+            putLocal(local, key, hit.value);
+            return hit.value;
+        }
+        return loadOnce(key, () -> {
+            String lockKey = "lock:" + key;
+            long deadline = System.currentTimeMillis() + loadTimeoutMillis;
+            while (!tryLock(lockKey)) {
+                //其他节点正在重建缓存，等待后重新查询缓存
+                if(System.currentTimeMillis() > deadline){
+                    throw new IllegalStateException("等待缓存重建超时：" + key);
+                }
+                sleep(50);
+                Cached<R> rebuilt = getCached(key, type);
+                if(rebuilt != null){
+                    putLocal(local, key, rebuilt.value);
+                    return rebuilt.value;
+                }
+            }
+            try {
+                //获取锁成功，再次检测redis缓存是否存在，如果存在，则无需重建缓存
+                Cached<R> rebuilt = getCached(key, type);
+                if(rebuilt != null){
+                    putLocal(local, key, rebuilt.value);
+                    return rebuilt.value;
+                }
+                return load(key, id, dbFallback, time, unit);
+            } finally {
+                unlock(lockKey);
+            }
+        });
+    }
+
+    /**
+     * 查询数据库并写入缓存（数据库不存在时缓存空值）
+     */
+    private <R,ID> R load(String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit){
         R r = dbFallback.apply(id);
         //数据库不存在该数据
         if(r == null){
             //缓存空值到redis中（为解决缓存穿透问题）
-            stringRedisTemplate.opsForValue().set(key,"",RedisConstants.CACHE_NULL_TTL,TimeUnit.MINUTES);
+            setRaw(key, NULL_BYTES, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            putLocal(localCache(key), key, null);
             return null;
         }
-
-        //数据库存在该数据
-        //缓存到redis中
+        //数据库存在该数据，缓存到redis中
         this.set(key,r,time,unit);
-        //5. 返回
+        putLocal(localCache(key), key, r);
         return r;
     }
+
+    /**
+     * single-flight：同一个key同时只有一个线程执行加载，其他线程等待并共享它的结果
+     * @param key 缓存key
+     * @param loader 加载数据
+     * @return 加载结果
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R loadOnce(String key, Supplier<R> loader){
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, future);
+        if(running != null){
+            //其他线程正在加载，等待结果
+            try {
+                return (R) running.get(loadTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待缓存加载被中断：" + key, e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("缓存加载失败：" + key, e.getCause());
+            } catch (TimeoutException e) {
+                throw new IllegalStateException("等待缓存加载超时：" + key, e);
+            }
+        }
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private static void sleep(long millis){
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
     
     
+    /**
+     * 根据id批量查询数据（以缓存空数据方式，解决缓存穿透）
+     * 一次MGET查出所有缓存，只把未命中的id交给数据库批量查询，查询结果（数据库不存在的缓存空值）一次pipeline写回
+     * @param keyPrefix 键前缀
+     * @param ids id列表
+     * @param type 查询数据类型
+     * @param dbFallback 批量查询数据库，参数为未命中的id，返回 id -> 数据（不存在的id不包含在内）
+     * @param time 缓存时间
+     * @param unit 缓存时间单位
+     * @return 按ids的顺序返回查询到的数据，不存在的跳过
+     * @param <R>
+     * @param <ID>
+     */
+    public <R,ID> List<R> queryBatchWithPassThrough(String keyPrefix, List<ID> ids, Class<R> type,
+                                                  Function<List<ID>, Map<ID,R>> dbFallback, Long time, TimeUnit unit){
+        Map<ID, R> found = new HashMap<>(ids.size());
+        //1.先查本地缓存
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            String key = keyPrefix + id;
+            LRUCache<String, Object> local = localCache(key);
+            Object cached = local == null ? null : local.get(key, false);
+            if(cached == null){
+                remoteIds.add(id);
+            } else if(cached != NULL_VALUE){
+                found.put(id, type.cast(cached));
+            }
+        }
+        //2.一次MGET查询redis
+        List<ID> missIds = new ArrayList<>();
+        if(!remoteIds.isEmpty()){
+            List<String> keys = new ArrayList<>(remoteIds.size());
+            for (ID id : remoteIds) {
+                keys.add(keyPrefix + id);
+            }
+            List<byte[]> values = mGet(keys);
+            for (int i = 0; i < remoteIds.size(); i++) {
+                byte[] cached = values == null ? null : values.get(i);
+                //空字节是缓存的空值
+                R r = cached == null || cached.length == 0 ? null : cacheCodecs.decode(cached, type);
+                if(cached == null || (cached.length > 0 && r == null)){
+                    missIds.add(remoteIds.get(i));
+                    continue;
+                }
+                putLocal(localCache(keys.get(i)), keys.get(i), r);
+                if(r != null){
+                    found.put(remoteIds.get(i), r);
+                }
+            }
+        }
+        //3.未命中的id批量查询数据库，一次pipeline写回redis
+        if(!missIds.isEmpty()){
+            Map<ID, R> loaded = dbFallback.apply(missIds);
+            Expiration ttl = Expiration.from(time, unit);
+            Expiration nullTtl = Expiration.from(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : missIds) {
+                    String key = keyPrefix + id;
+                    R r = loaded.get(id);
+                    connection.set(keyBytes(key), r == null ? NULL_BYTES : cacheCodecs.encode(key, r),
+                            r == null ? nullTtl : ttl, RedisStringCommands.SetOption.upsert());
+                }
+                return null;
+            });
+            for (ID id : missIds) {
+                R r = loaded.get(id);
+                putLocal(localCache(keyPrefix + id), keyPrefix + id, r);
+                if(r != null){
+                    found.put(id, r);
+                }
+            }
+        }
+        //4.按调用方的顺序返回
+        List<R> result = new ArrayList<>(found.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if(r != null){
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 查询列表数据（如店铺的优惠券列表），无缓存查询数据库，空列表也缓存
+     * 返回的列表可能被多个请求共享（本地缓存），不可修改，调用方需要修改元素时先复制
+     * @param keyPrefix 键前缀
+     * @param id id
+     * @param type 元素类型
+     * @param dbFallback 查询数据库语句，返回值不为null
+     * @param time 缓存时间
+     * @param unit 缓存时间单位
+     * @return 列表
+     */
+    @SuppressWarnings("unchecked")
+    public <R,ID> List<R> queryListWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,List<R>> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        LRUCache<String, Object> local = localCache(key);
+        if(local != null){
+            Object cached = local.get(key, false);
+            if(cached != null){
+                return (List<R>) cached;
+            }
+        }
+        byte[] cached = getRaw(key);
+        if(cached != null && cached.length > 0){
+            List<R> list = cacheCodecs.decodeList(cached, type);
+            if(list != null){
+                list = Collections.unmodifiableList(list);
+                putLocal(local, key, list);
+                return list;
+            }
+        }
+        return loadOnce(key, () -> {
+            List<R> list = Collections.unmodifiableList(dbFallback.apply(id));
+            setRaw(key, cacheCodecs.encodeList(key, list), time, unit);
+            putLocal(local, key, list);
+            return list;
+        });
+    }
+
+    private void putLocal(LRUCache<String, Object> local, String key, Object value){
+        if(local != null){
+            local.put(key, value == null ? NULL_VALUE : value);
+        }
+    }
+    
     //线程池
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
     //逻辑过期解决缓存击穿
     public <R,ID> R queryWithLogicalExpire(String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time,TimeUnit unit){
         String key = keyPrefix + id;
         //去redis查询缓存中是否存在数据
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] cached = getRaw(key);
 
         //不存在，返回空
-        if(StrUtil.isBlank(json)){
+        if(cached == null || cached.length == 0){
             return null;
         }
 
-        //存在，将缓存数据Json字符串反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject jsonObject = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(jsonObject, type);
+        //存在，将缓存数据反序列化为对象（无法解码的按未命中处理）
+        RedisData redisData = cacheCodecs.decodeWithExpire(cached, type);
+        if(redisData == null || redisData.getExpireTime() == null){
+            return null;
+        }
+        R r = type.cast(redisData.getData());
         //判断逻辑过期
         if(redisData.getExpireTime().isAfter(LocalDateTime.now())){
             //未过期，直接返回数据
@@ -134,18 +505,17 @@ public class CacheClient {
 
         //过期
         //获取互斥锁
-        String localKey = RedisConstants.LOCK_SHOP_KEY + id;
+        String localKey = "lock:" + key;
         boolean isLock = tryLock(localKey);
         //成功，开新线程重建缓存，返回过期数据
         if(isLock){
             //Double Check
             //获取锁成功，再次检测redis缓存是否存在，如果存在，则无需重建缓存
-            json = stringRedisTemplate.opsForValue().get(key);
-            redisData = JSONUtil.toBean(json, RedisData.class);
-            jsonObject = (JSONObject) redisData.getData();
-            r = JSONUtil.toBean(jsonObject, type);
-            if(redisData.getExpireTime().isAfter(LocalDateTime.now())){
-                return r;
+            cached = getRaw(key);
+            RedisData rebuilt = cached == null || cached.length == 0 ? null : cacheCodecs.decodeWithExpire(cached, type);
+            if(rebuilt != null && rebuilt.getExpireTime() != null && rebuilt.getExpireTime().isAfter(LocalDateTime.now())){
+                unlock(localKey);
+                return type.cast(rebuilt.getData());
             }
 
             CACHE_REBUILD_EXECUTOR.submit(() -> {
@@ -168,6 +538,251 @@ public class CacheClient {
         return r;
     }
 
+    /**
+     * 是否开启提前刷新
+     */
+    public boolean isRefreshAhead(){
+        return refreshAheadEnabled;
+    }
+
+    /**
+     * 根据id查询数据，热点key在逻辑过期前提前刷新（以逻辑过期方式存储，数据库不存在时缓存空值）
+     * 1.每次访问计数，记录逻辑过期时间
+     * 2.未命中（或旧格式数据）时single-flight加载并写入缓存
+     * 3.已过期时返回旧数据并异步刷新（只有不够热的key，或统计数量已满、没有被统计的key才会走到这里）
+     * @param keyPrefix 键前缀
+     * @param id id
+     * @param type  查询数据类型
+     * @param dbFallback    查询数据库语句
+     * @param time  逻辑过期时间
+     * @param unit  时间单位
+     * @return  返回查询数据
+     * @param <R>
+     * @param <ID>
+     */
+    public <R,ID> R queryWithRefreshAhead(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        HotKey hot = track(key, () -> refresh(key, id, dbFallback, time, unit, false));
+        if(hot != null){
+            hot.hits.increment();
+        }
+        LRUCache<String, Object> local = localCache(key);
+        if(local != null){
+            Object cached = local.get(key, false);
+            if(cached != null){
+                return cached == NULL_VALUE ? null : type.cast(cached);
+            }
+        }
+        byte[] cached = getRaw(key);
+        //空字节是缓存的空值
+        if(cached != null && cached.length == 0){
+            putLocal(local, key, null);
+            return null;
+        }
+        RedisData redisData = cached == null ? null : cacheCodecs.decodeWithExpire(cached, type);
+        if(redisData == null || redisData.getExpireTime() == null){
+            //未命中、无法解码，或者是没有逻辑过期时间的数据，同步加载
+            return loadOnce(key, () -> refresh(key, id, dbFallback, time, unit, true));
+        }
+        R r = type.cast(redisData.getData());
+        long expireMillis = toEpochMilli(redisData.getExpireTime());
+        if(hot != null){
+            hot.expireMillis = expireMillis;
+        }
+        if(expireMillis <= System.currentTimeMillis()){
+            //已过期，返回旧数据，异步刷新。逻辑过期的数据没有TTL，没被统计的key也要刷新，否则一直是旧数据
+            if(hot != null){
+                submitRefresh(key, hot);
+            } else {
+                submitUntrackedRefresh(key, () -> refresh(key, id, dbFallback, time, unit, false));
+            }
+            return r;
+        }
+        putLocal(local, key, r);
+        return r;
+    }
+
+    /**
+     * 定时检查访问统计：本间隔内访问次数达到阈值、且临近逻辑过期的key提前刷新；没有访问的key不再统计
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.refresh-ahead.interval-ms:1000}")
+    public void refreshHotKeys(){
+        if(!refreshAheadEnabled || hotKeys.isEmpty()){
+            return;
+        }
+        long now = System.currentTimeMillis();
+        hotKeys.forEach((key, hot) -> {
+            long hits = hot.hits.sumThenReset();
+            if(hits == 0){
+                hotKeys.remove(key, hot);
+                return;
+            }
+            if(hits >= hotThreshold && hot.expireMillis - now <= aheadMillis){
+                submitRefresh(key, hot);
+            }
+        });
+    }
+
+    private HotKey track(String key, Supplier<Object> reload){
+        if(!refreshAheadEnabled){
+            return null;
+        }
+        HotKey hot = hotKeys.get(key);
+        if(hot == null && hotKeys.size() < maxTrackedKeys){
+            hot = hotKeys.computeIfAbsent(key, k -> new HotKey(reload));
+        }
+        return hot;
+    }
+
+    private void submitRefresh(String key, HotKey hot){
+        if(!hot.refreshing.compareAndSet(false, true)){
+            return;
+        }
+        try {
+            CACHE_REBUILD_EXECUTOR.submit(() -> {
+                try {
+                    hot.reload.get();
+                } catch (Exception e) {
+                    log.error("提前刷新缓存失败：{}", key, e);
+                } finally {
+                    hot.refreshing.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            hot.refreshing.set(false);
+            throw e;
+        }
+    }
+
+    /**
+     * 没有访问统计的key单次异步刷新，同一节点同一个key同时只提交一次，多个节点由refresh中的Redis锁协调
+     */
+    private void submitUntrackedRefresh(String key, Supplier<Object> reload){
+        if(!untrackedRefreshing.add(key)){
+            return;
+        }
+        try {
+            CACHE_REBUILD_EXECUTOR.submit(() -> {
+                try {
+                    reload.get();
+                } catch (Exception e) {
+                    log.error("刷新过期缓存失败：{}", key, e);
+                } finally {
+                    untrackedRefreshing.remove(key);
+                }
+            });
+        } catch (RuntimeException e) {
+            untrackedRefreshing.remove(key);
+            throw e;
+        }
+    }
+
+    /**
+     * 重新加载数据并以逻辑过期方式写入缓存
+     * 多个节点用Redis锁协调：没抢到锁说明其他节点正在刷新，后台刷新直接放弃；
+     * 同步加载（未命中）仍要查询数据库返回给调用方，但不写缓存
+     * @param sync 是否是同步加载
+     */
+    private <R,ID> R refresh(String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit, boolean sync){
+        String lockKey = "lock:" + key;
+        boolean isLock = tryLock(lockKey);
+        if(!isLock && !sync){
+            return null;
+        }
+        try {
+            R r = dbFallback.apply(id);
+            if(r == null){
+                setRaw(key, NULL_BYTES, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            } else if(isLock){
+                setWithLogicalExpire(key, r, time, unit);
+                HotKey hot = hotKeys.get(key);
+                if(hot != null){
+                    hot.expireMillis = System.currentTimeMillis() + unit.toMillis(time);
+                }
+            }
+            putLocal(localCache(key), key, r);
+            return r;
+        } finally {
+            if(isLock){
+                unlock(lockKey);
+            }
+        }
+    }
+
+    /**
+     * 读取并解码缓存（兼容逻辑过期格式，开关提前刷新时不需要清空缓存）
+     * @return 未命中或无法解码返回null；缓存的空值返回value为null的结果
+     */
+    private <R> Cached<R> getCached(String key, Class<R> type){
+        byte[] cached = getRaw(key);
+        if(cached == null){
+            return null;
+        }
+        if(cached.length == 0){
+            return new Cached<>(null);
+        }
+        R r = cacheCodecs.decode(cached, type);
+        return r == null ? null : new Cached<>(r);
+    }
+
+    //读取缓存原始字节，不存在返回null
+    private byte[] getRaw(String key){
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(keyBytes(key)));
+    }
+
+    //一次MGET读取多个缓存的原始字节
+    private List<byte[]> mGet(List<String> keys){
+        byte[][] rawKeys = new byte[keys.size()][];
+        for (int i = 0; i < keys.size(); i++) {
+            rawKeys[i] = keyBytes(keys.get(i));
+        }
+        return stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+    }
+
+    //写入缓存原始字节，time为null时不设置过期时间
+    private void setRaw(String key, byte[] value, Long time, TimeUnit unit){
+        Expiration expiration = time == null ? Expiration.persistent() : Expiration.from(time, unit);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.set(keyBytes(key), value, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    private static byte[] keyBytes(String key){
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long toEpochMilli(LocalDateTime time){
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 缓存命中结果，value为null表示缓存的空值
+     */
+    private static class Cached<R> {
+        private final R value;
+
+        Cached(R value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * key的访问统计
+     */
+    private static class HotKey {
+        //重新加载数据
+        private final Supplier<Object> reload;
+        //本检查间隔内的访问次数
+        private final LongAdder hits = new LongAdder();
+        //逻辑过期时间
+        private volatile long expireMillis;
+        //是否正在刷新
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        HotKey(Supplier<Object> reload) {
+            this.reload = reload;
+        }
+    }
+
     //获取锁
     private boolean tryLock(String key){
         //setIfAbsent就是setnx操作。值是随便给的
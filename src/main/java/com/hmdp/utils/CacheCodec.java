@@ -0,0 +1,44 @@
+package com.hmdp.utils;
+
+import java.util.List;
+
+/**
+ *  缓存值编解码
+ *  只负责对象与字节之间的转换，头部字节、压缩、逻辑过期时间由 CacheCodecs 处理。
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码
+     * @param value 缓存的对象，不为null
+     * @return 字节
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 解码
+     * @param bytes 字节
+     * @param offset 起始位置
+     * @param length 长度
+     * @param type 对象类型
+     * @return 对象，数据与当前类型不匹配（如类的字段已变化）时返回null
+     */
+    <R> R decode(byte[] bytes, int offset, int length, Class<R> type);
+
+    /**
+     * 编码列表
+     * @param values 列表，不为null，元素不为null
+     * @return 字节
+     */
+    byte[] encodeList(List<?> values);
+
+    /**
+     * 解码列表
+     * @param bytes 字节
+     * @param offset 起始位置
+     * @param length 长度
+     * @param type 元素类型
+     * @return 列表，数据与当前类型不匹配时返回null
+     */
+    <R> List<R> decodeList(byte[] bytes, int offset, int length, Class<R> type);
+}
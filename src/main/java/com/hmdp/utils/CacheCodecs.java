@@ -0,0 +1,315 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.convert.ConvertException;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONException;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *  缓存值格式
+ *  按键前缀选择编解码方式（json / binary），编码结果前加一个头部字节：最高位0x80固定为1，低4位为编解码方式，
+ *  0x10表示deflate压缩，0x20表示带逻辑过期时间（头部后8个字节的毫秒时间戳）。超过压缩阈值的数据才压缩。
+ *  json且不压缩时不加头部，写入的就是原来的JSON（逻辑过期为RedisData的JSON），旧节点也能读取；
+ *  没有头部的数据按原来的JSON格式解析：UTF-8编码的JSON文本第一个字节总是ASCII（'{'、'['、'"'、数字等，都小于0x80），
+ *  不会与头部字节冲突。无法解析的数据（JSON格式错误、头部不认识）按未命中处理。
+ *  因此切换某个前缀的编解码方式不需要清空Redis：旧数据照常读取，过期或更新后逐步换成新格式。
+ */
+@Component
+public class CacheCodecs {
+
+    private static final byte CODEC_JSON = 0x01;
+    private static final byte CODEC_BINARY = 0x02;
+    private static final byte CODEC_MASK = 0x0F;
+    private static final byte FLAG_DEFLATED = 0x10;
+    private static final byte FLAG_EXPIRE = 0x20;
+    //头部字节的最高位固定为1，0x40保留为0
+    private static final byte FLAG_HEADER = (byte) 0x80;
+    private static final byte FLAG_RESERVED = 0x40;
+
+    private final CacheCodec json = new JsonCacheCodec();
+    private final CacheCodec binary = new BinaryCacheCodec();
+
+    //默认编解码方式
+    @Value("${hmdp.cache.codec.default:json}")
+    private String defaultCodec;
+    //按键前缀指定编解码方式，如 cache:shop:=binary,cache:user:=binary
+    @Value("${hmdp.cache.codec.prefixes:}")
+    private String[] prefixCodecs;
+    //超过该字节数才压缩，小于等于0不压缩
+    @Value("${hmdp.cache.codec.compress-threshold:1024}")
+    private int compressThreshold;
+
+    //键前缀 -> 编解码方式
+    private final Map<String, Byte> prefixes = new LinkedHashMap<>();
+    private byte defaultId;
+
+    @PostConstruct
+    private void init() {
+        defaultId = codecId(defaultCodec);
+        for (String prefixCodec : prefixCodecs) {
+            if (StrUtil.isBlank(prefixCodec)) {
+                continue;
+            }
+            int index = prefixCodec.lastIndexOf('=');
+            if (index <= 0) {
+                throw new IllegalArgumentException("缓存编解码配置格式错误：" + prefixCodec);
+            }
+            prefixes.put(prefixCodec.substring(0, index).trim(), codecId(prefixCodec.substring(index + 1)));
+        }
+    }
+
+    /**
+     * 编码
+     * @param key 缓存key，按前缀选择编解码方式
+     * @param value 不为null
+     */
+    public byte[] encode(String key, Object value) {
+        return encode(key, value, null);
+    }
+
+    /**
+     * 编码（逻辑过期）
+     * @param key 缓存key，按前缀选择编解码方式
+     * @param value 不为null
+     * @param expireTime 逻辑过期时间
+     */
+    public byte[] encode(String key, Object value, LocalDateTime expireTime) {
+        byte id = codecOf(key);
+        return wrap(id, codec(id).encode(value), value, expireTime);
+    }
+
+    /**
+     * 编码列表
+     * @param key 缓存key，按前缀选择编解码方式
+     * @param values 不为null
+     */
+    public byte[] encodeList(String key, List<?> values) {
+        byte id = codecOf(key);
+        return wrap(id, codec(id).encodeList(values), values, null);
+    }
+
+    /**
+     * 编码结果加上头部（按需压缩、写入逻辑过期时间）
+     */
+    private byte[] wrap(byte id, byte[] payload, Object value, LocalDateTime expireTime) {
+        boolean deflate = compressThreshold > 0 && payload.length > compressThreshold;
+        if (id == CODEC_JSON && !deflate) {
+            //原来的格式
+            if (expireTime == null) {
+                return payload;
+            }
+            RedisData redisData = new RedisData();
+            redisData.setData(value);
+            redisData.setExpireTime(expireTime);
+            return json.encode(redisData);
+        }
+        if (deflate) {
+            byte[] deflated = deflate(payload);
+            //压缩后没有变小就不压缩
+            if (deflated.length < payload.length) {
+                payload = deflated;
+            } else {
+                deflate = false;
+            }
+        }
+        byte header = (byte) (FLAG_HEADER | id | (deflate ? FLAG_DEFLATED : 0) | (expireTime != null ? FLAG_EXPIRE : 0));
+        ByteBuffer buffer = ByteBuffer.allocate(1 + (expireTime != null ? 8 : 0) + payload.length);
+        buffer.put(header);
+        if (expireTime != null) {
+            buffer.putLong(expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        }
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    /**
+     * 解码
+     * @param bytes 缓存值，不为空
+     * @return 对象，无法解码（如类的字段已变化）时返回null
+     */
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        RedisData redisData = decodeWithExpire(bytes, type);
+        return redisData == null ? null : type.cast(redisData.getData());
+    }
+
+    /**
+     * 解码（逻辑过期）
+     * @param bytes 缓存值，不为空
+     * @return data为解码后的对象，expireTime为逻辑过期时间（没有逻辑过期时间为null）；无法解码时返回null
+     */
+    public <R> RedisData decodeWithExpire(byte[] bytes, Class<R> type) {
+        byte header = bytes[0];
+        byte id = (byte) (header & CODEC_MASK);
+        if (isLegacy(header)) {
+            return decodeLegacy(bytes, type);
+        }
+        if (!isValid(header, bytes.length)) {
+            return null;
+        }
+        int offset = 1;
+        RedisData redisData = new RedisData();
+        if ((header & FLAG_EXPIRE) != 0) {
+            long expireMillis = ByteBuffer.wrap(bytes, offset, 8).getLong();
+            redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireMillis), ZoneId.systemDefault()));
+            offset += 8;
+        }
+        int length = bytes.length - offset;
+        if ((header & FLAG_DEFLATED) != 0) {
+            bytes = inflate(bytes, offset, length);
+            if (bytes == null) {
+                return null;
+            }
+            offset = 0;
+            length = bytes.length;
+        }
+        R r = codec(id).decode(bytes, offset, length, type);
+        if (r == null) {
+            return null;
+        }
+        redisData.setData(r);
+        return redisData;
+    }
+
+    /**
+     * 解码列表
+     * @param bytes 缓存值，不为空
+     * @return 列表，无法解码时返回null
+     */
+    public <R> List<R> decodeList(byte[] bytes, Class<R> type) {
+        byte header = bytes[0];
+        if (isLegacy(header)) {
+            //没有头部的JSON数组
+            return json.decodeList(bytes, 0, bytes.length, type);
+        }
+        if (!isValid(header, bytes.length)) {
+            return null;
+        }
+        int offset = (header & FLAG_EXPIRE) != 0 ? 9 : 1;
+        int length = bytes.length - offset;
+        if ((header & FLAG_DEFLATED) != 0) {
+            bytes = inflate(bytes, offset, length);
+            if (bytes == null) {
+                return null;
+            }
+            offset = 0;
+            length = bytes.length;
+        }
+        return codec((byte) (header & CODEC_MASK)).decodeList(bytes, offset, length, type);
+    }
+
+    //没有头部的数据（原来的JSON格式）：第一个字节小于0x80
+    private static boolean isLegacy(byte header) {
+        return (header & FLAG_HEADER) == 0;
+    }
+
+    //头部字节是否合法：编解码方式认识、保留位为0、长度足够放下逻辑过期时间
+    private static boolean isValid(byte header, int length) {
+        byte id = (byte) (header & CODEC_MASK);
+        if ((header & FLAG_RESERVED) != 0 || (id != CODEC_JSON && id != CODEC_BINARY)) {
+            return false;
+        }
+        return (header & FLAG_EXPIRE) == 0 || length >= 9;
+    }
+
+    /**
+     * 没有头部的旧数据：JSON，或者逻辑过期的RedisData JSON
+     * 只解析一次JSON，data直接转换为目标类型，不再经过RedisData
+     * @return 不是JSON对象或无法转换为目标类型时返回null
+     */
+    private <R> RedisData decodeLegacy(byte[] bytes, Class<R> type) {
+        try {
+            JSONObject jsonObject = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+            RedisData redisData = new RedisData();
+            Object data = jsonObject.get("data");
+            if (data instanceof JSONObject && jsonObject.containsKey("expireTime")) {
+                redisData.setExpireTime(Convert.toLocalDateTime(jsonObject.get("expireTime")));
+                redisData.setData(((JSONObject) data).toBean(type));
+            } else {
+                redisData.setData(jsonObject.toBean(type));
+            }
+            return redisData;
+        } catch (JSONException | ConvertException e) {
+            return null;
+        }
+    }
+
+    private byte codecOf(String key) {
+        for (Map.Entry<String, Byte> entry : prefixes.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return defaultId;
+    }
+
+    private CacheCodec codec(byte id) {
+        return id == CODEC_BINARY ? binary : json;
+    }
+
+    private static byte codecId(String name) {
+        switch (name.trim().toLowerCase()) {
+            case "json":
+                return CODEC_JSON;
+            case "binary":
+                return CODEC_BINARY;
+            default:
+                throw new IllegalArgumentException("不支持的缓存编解码方式：" + name);
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    //数据损坏时返回null
+    private static byte[] inflate(byte[] data, int offset, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsInput()) {
+                    return null;
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ *  全局唯一ID生成器
+ */
+public interface IdGenerator {
+
+    /**
+     * 生成唯一ID
+     * @param keyPrefix 业务前缀
+     * @return  唯一ID
+     */
+    long nextId(String keyPrefix);
+
+    /**
+     * 异步生成唯一ID，默认直接在调用线程生成
+     * @param keyPrefix 业务前缀
+     * @return  唯一ID
+     */
+    default CompletableFuture<Long> nextIdAsync(String keyPrefix) {
+        return CompletableFuture.completedFuture(nextId(keyPrefix));
+    }
+}
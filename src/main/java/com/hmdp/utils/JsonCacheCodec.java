@@ -0,0 +1,42 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.convert.ConvertException;
+import cn.hutool.json.JSONException;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ *  JSON编解码（hutool JSONUtil，原来的缓存格式）
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, int offset, int length, Class<R> type) {
+        try {
+            return JSONUtil.toBean(new String(bytes, offset, length, StandardCharsets.UTF_8), type);
+        } catch (JSONException | ConvertException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public byte[] encodeList(List<?> values) {
+        return encode(values);
+    }
+
+    @Override
+    public <R> List<R> decodeList(byte[] bytes, int offset, int length, Class<R> type) {
+        try {
+            return JSONUtil.toList(new String(bytes, offset, length, StandardCharsets.UTF_8), type);
+        } catch (JSONException | ConvertException e) {
+            return null;
+        }
+    }
+}
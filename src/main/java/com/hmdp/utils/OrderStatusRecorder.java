@@ -0,0 +1,133 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.OrderStatusDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.constant.RedisConstants.ORDER_STATUS_KEY;
+
+/**
+ *  秒杀订单状态
+ *  每个订单一个hash order:status:{orderId}（status、reason、userId、voucherId），带有效期：
+ *  秒杀脚本下单成功时写入 QUEUED，消费者落库后改为 PERSISTED，被丢弃时改为 FAILED 并记录原因，
+ *  超时未支付被取消后改为 CANCELLED。
+ *  查询订单状态只读这个hash，不访问数据库。
+ */
+@Component
+public class OrderStatusRecorder {
+
+    public static final String QUEUED = "QUEUED";
+    public static final String PERSISTED = "PERSISTED";
+    public static final String FAILED = "FAILED";
+    public static final String CANCELLED = "CANCELLED";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //订单状态有效期（秒）
+    @Value("${hmdp.seckill.order-status.ttl-seconds:86400}")
+    private long ttlSeconds;
+
+    /**
+     * 订单已落库
+     */
+    public void persisted(Long orderId) {
+        write(orderId, PERSISTED, null);
+    }
+
+    /**
+     * 订单落库失败
+     */
+    public void failed(Long orderId, String reason) {
+        write(orderId, FAILED, reason);
+    }
+
+    /**
+     * 批量更新一批订单的状态（一次pipeline）
+     * @param persisted 已落库的订单id
+     * @param failed 失败的订单id -> 失败原因
+     */
+    public void record(Collection<Long> persisted, Map<Long, String> failed) {
+        if (persisted.isEmpty() && failed.isEmpty()) {
+            return;
+        }
+        long ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long orderId : persisted) {
+                conn.hSet(ORDER_STATUS_KEY + orderId, "status", PERSISTED);
+                conn.pExpire(ORDER_STATUS_KEY + orderId, ttlMillis);
+            }
+            for (Map.Entry<Long, String> entry : failed.entrySet()) {
+                Map<String, String> fields = new HashMap<>(2);
+                fields.put("status", FAILED);
+                fields.put("reason", entry.getValue());
+                conn.hMSet(ORDER_STATUS_KEY + entry.getKey(), fields);
+                conn.pExpire(ORDER_STATUS_KEY + entry.getKey(), ttlMillis);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 订单超时未支付已取消（一次pipeline）
+     */
+    public void cancelled(Collection<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        long ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long orderId : orderIds) {
+                conn.hSet(ORDER_STATUS_KEY + orderId, "status", CANCELLED);
+                conn.pExpire(ORDER_STATUS_KEY + orderId, ttlMillis);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 查询订单状态
+     * @param userId 当前用户，不能为空，只能查自己的订单
+     * @return 订单状态，不存在（或已过期）、不属于该用户、无法确认归属时返回null
+     */
+    public OrderStatusDTO get(Long orderId, Long userId) {
+        Objects.requireNonNull(userId, "userId");
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(ORDER_STATUS_KEY + orderId);
+        if (entries.isEmpty() || entries.get("status") == null) {
+            return null;
+        }
+        //没有记录下单用户的状态（如过期后被消费者重新写入）同样不返回，避免泄露他人订单
+        if (!userId.toString().equals(entries.get("userId"))) {
+            return null;
+        }
+        OrderStatusDTO status = new OrderStatusDTO();
+        status.setOrderId(orderId);
+        status.setStatus((String) entries.get("status"));
+        status.setReason((String) entries.get("reason"));
+        return status;
+    }
+
+    private void write(Long orderId, String status, String reason) {
+        Map<String, String> fields = new HashMap<>(2);
+        fields.put("status", status);
+        if (StrUtil.isNotBlank(reason)) {
+            fields.put("reason", reason);
+        }
+        String key = ORDER_STATUS_KEY + orderId;
+        stringRedisTemplate.opsForHash().putAll(key, fields);
+        stringRedisTemplate.expire(key, ttlSeconds, TimeUnit.SECONDS);
+    }
+}
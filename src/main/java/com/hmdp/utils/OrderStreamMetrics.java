@@ -0,0 +1,132 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static com.hmdp.constant.RedisConstants.STREAM_ORDERS_GROUP;
+import static com.hmdp.constant.RedisConstants.STREAM_ORDERS_KEY;
+
+/**
+ *  订单消息队列指标（通过 /actuator/prometheus 暴露）
+ *  seckill.stream.lag           最新消息与消费者组最后投递消息的时间差（毫秒），持续增长说明消费跟不上
+ *  seckill.stream.pending       已投递未确认的消息数（XINFO GROUPS）
+ *  seckill.stream.pending.age   最早一条未确认消息距今的时间（毫秒，XPENDING）
+ *  seckill.order.processed      处理的订单数（result=persisted/failed），取rate即每秒处理量
+ *  seckill.order.e2e            XADD（消息id中的时间戳）到落库提交的耗时
+ *  seckill.order.create         创建订单（事务）耗时直方图（mode=single/batch）
+ *  seckill.order.failure        落库失败数（reason）
+ *  消息id的时间戳来自Redis服务器时钟，e2e耗时受各节点与Redis时钟偏差影响。
+ */
+@Slf4j
+@Component
+public class OrderStreamMetrics {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private final AtomicLong lagMillis = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong pendingAgeMillis = new AtomicLong();
+    private Counter persistedCounter;
+    private Counter failedCounter;
+    private Timer e2eTimer;
+    //失败原因 -> 计数器
+    private final Map<String, Counter> failureCounters = new ConcurrentHashMap<>();
+    //mode -> 耗时直方图
+    private final Map<String, Timer> createTimers = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        Gauge.builder("seckill.stream.lag", lagMillis, AtomicLong::get).baseUnit("milliseconds").register(meterRegistry);
+        Gauge.builder("seckill.stream.pending", pending, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("seckill.stream.pending.age", pendingAgeMillis, AtomicLong::get).baseUnit("milliseconds").register(meterRegistry);
+        persistedCounter = meterRegistry.counter("seckill.order.processed", "result", "persisted");
+        failedCounter = meterRegistry.counter("seckill.order.processed", "result", "failed");
+        e2eTimer = Timer.builder("seckill.order.e2e").publishPercentileHistogram().register(meterRegistry);
+    }
+
+    /**
+     * 记录一条订单消息的处理结果
+     * @param recordId 消息id，其中的时间戳即XADD的时间
+     * @param failReason 失败原因，成功为null
+     */
+    public void processed(RecordId recordId, String failReason) {
+        if (failReason == null) {
+            persistedCounter.increment();
+        } else {
+            failedCounter.increment();
+            failure(failReason);
+        }
+        Long timestamp = recordId.getTimestamp();
+        if (timestamp != null) {
+            e2eTimer.record(Math.max(0, System.currentTimeMillis() - timestamp), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 失败计数（不经过落库的失败，如转入死信队列）
+     */
+    public void failure(String reason) {
+        failureCounters.computeIfAbsent(reason,
+                r -> meterRegistry.counter("seckill.order.failure", "reason", r)).increment();
+    }
+
+    /**
+     * 统计创建订单耗时
+     * @param mode single逐条 / batch批量
+     */
+    public <T> T timeCreate(String mode, Supplier<T> supplier) {
+        return createTimers.computeIfAbsent(mode, m -> Timer.builder("seckill.order.create")
+                .tag("mode", m).publishPercentileHistogram().register(meterRegistry))
+                .record(supplier);
+    }
+
+    /**
+     * 定时采样消费者组积压情况
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.metrics.sample-interval-ms:5000}")
+    public void sample() {
+        try {
+            // 1.XINFO STREAM / XINFO GROUPS：最新消息id、组内最后投递的消息id、pending数
+            StreamInfo.XInfoStream stream = stringRedisTemplate.opsForStream().info(STREAM_ORDERS_KEY);
+            for (StreamInfo.XInfoGroup group : stringRedisTemplate.opsForStream().groups(STREAM_ORDERS_KEY)) {
+                if (!STREAM_ORDERS_GROUP.equals(group.groupName())) {
+                    continue;
+                }
+                pending.set(group.pendingCount());
+                Long last = RecordId.of(stream.lastGeneratedId()).getTimestamp();
+                Long delivered = RecordId.of(group.lastDeliveredId()).getTimestamp();
+                lagMillis.set(last == null || delivered == null ? 0 : Math.max(0, last - delivered));
+            }
+            // 2.XPENDING stream.orders g1：最早一条未确认消息
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP);
+            if (summary == null || summary.getTotalPendingMessages() == 0) {
+                pendingAgeMillis.set(0);
+                return;
+            }
+            Long oldest = RecordId.of(summary.minMessageId()).getTimestamp();
+            pendingAgeMillis.set(oldest == null ? 0 : Math.max(0, System.currentTimeMillis() - oldest));
+        } catch (Exception e) {
+            log.error("采样订单消息队列指标异常", e);
+        }
+    }
+}
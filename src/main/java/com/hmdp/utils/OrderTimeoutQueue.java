@@ -0,0 +1,86 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.constant.RedisConstants.ORDER_TIMEOUT_KEY;
+
+/**
+ *  未支付订单超时队列（延迟队列）
+ *  订单落库后以 超时时间 为score加入zset order:timeout，由OrderTimeoutTask定时批量认领到期的订单并取消。
+ */
+@Component
+public class OrderTimeoutQueue {
+
+    private final static DefaultRedisScript<List> CLAIM_SCRIPT;
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("order_timeout_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //是否开启超时取消
+    @Value("${hmdp.seckill.order-timeout.enabled:false}")
+    private boolean enabled;
+    //下单后多久未支付取消（分钟）
+    @Value("${hmdp.seckill.order-timeout.timeout-minutes:15}")
+    private long timeoutMinutes;
+    //认领后顺延的时间（毫秒）
+    @Value("${hmdp.seckill.order-timeout.visibility-ms:60000}")
+    private long visibilityMillis;
+
+    /**
+     * 新订单加入超时队列（一次pipeline）
+     */
+    public void add(Collection<Long> orderIds) {
+        if (!enabled || orderIds.isEmpty()) {
+            return;
+        }
+        double deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(timeoutMinutes);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long orderId : orderIds) {
+                conn.zAdd(ORDER_TIMEOUT_KEY, deadline, orderId.toString());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 认领一批到期的订单
+     */
+    @SuppressWarnings("unchecked")
+    public List<Long> claimDue(int batchSize) {
+        List<String> due = stringRedisTemplate.execute(CLAIM_SCRIPT, Collections.singletonList(ORDER_TIMEOUT_KEY),
+                String.valueOf(System.currentTimeMillis()), String.valueOf(batchSize), String.valueOf(visibilityMillis));
+        if (due == null || due.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return due.stream().map(Long::valueOf).collect(Collectors.toList());
+    }
+
+    /**
+     * 处理完成，移出队列
+     */
+    public void remove(Collection<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.opsForZSet().remove(ORDER_TIMEOUT_KEY, orderIds.stream().map(String::valueOf).toArray());
+    }
+}
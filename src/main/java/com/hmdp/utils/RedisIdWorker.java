@@ -1,58 +1,236 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.ThreadUtil;
+import io.lettuce.core.api.StatefulRedisConnection;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *  Redis实现全局唯一ID生成器
+ *  号段模式：每个节点一次INCRBY租用一段序列号（如1000个），在本地原子自增发放，
+ *  当前号段用掉一定比例后异步预取下一段，把每个ID一次Redis往返降到每一千个ID一次。
  */
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdGenerator {
 
     /**
      * 基时间戳
      */
-    private static final long BEGIN_TIMESTAMP = 1640995200L;
+    static final long BEGIN_TIMESTAMP = 1640995200L;
 
     /**
      * 序列号位数
      */
     private static final int COUNT_LEN = 32;
-    
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
     private static StringRedisTemplate stringRedisTemplate;
-    
+    //异步连接（异步秒杀接口使用）
+    @Resource
+    private StatefulRedisConnection<String, String> asyncRedisConnection;
+
+    //是否开启号段模式
+    @Value("${hmdp.id.segment.enabled:false}")
+    private boolean segmentEnabled;
+    //每次租用的号段长度
+    @Value("${hmdp.id.segment.step:1000}")
+    private int segmentStep;
+    //号段剩余比例低于该值时预取下一段
+    @Value("${hmdp.id.segment.prefetch-ratio:0.2}")
+    private double prefetchRatio;
+
+    //当天的日期信息，跨天时才重新计算，避免每次都格式化日期
+    private volatile Day today;
+    //业务前缀 -> 号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    //号段预取线程
+    private static final ExecutorService SEGMENT_PREFETCH_EXECUTOR =
+            Executors.newSingleThreadExecutor(ThreadUtil.newNamedThreadFactory("id-segment-", true));
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate){
         this.stringRedisTemplate = stringRedisTemplate;
     }
-    
+
     /**
      * 生成唯一ID
      * @param keyPrefix 业务前缀
      * @return
      */
+    @Override
     public long nextId(String keyPrefix){
-        // 1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        // 1.生成时间戳（以本地时间作为UTC计算秒数，与原来 LocalDateTime.now().toEpochSecond(ZoneOffset.UTC) 一致）
+        long nowMillis = System.currentTimeMillis();
+        Day day = currentDay(nowMillis);
+        long nowSecond = nowMillis / 1000 + day.offsetSeconds;
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
-        
+
         // 2.生成序列号
         // 2.1获取当前时间（精确到天）
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 2.2自增长
+        // 2.2自增长（号段模式下从本地号段取）
         // 因为要做运算，所以用long而不是包装类Long，报黄提示产生空指针，实际是不会产生空指针的。
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
-        
+        long count = segmentEnabled
+                ? nextSequence(keyPrefix, day.date)
+                : stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + day.date);
+
         // 3. 拼接返回
         // 时间戳左移序列号位数，给序列号腾位置，再或上序列号，就将序列号放上去了。
         return timestamp << COUNT_LEN | count;
     }
 
+    /**
+     * 异步生成唯一ID：INCR走Lettuce异步命令，不阻塞调用线程
+     * 号段模式下绝大多数ID在本地发放，直接同步生成
+     */
+    @Override
+    public CompletableFuture<Long> nextIdAsync(String keyPrefix) {
+        if (segmentEnabled) {
+            return CompletableFuture.completedFuture(nextId(keyPrefix));
+        }
+        long nowMillis = System.currentTimeMillis();
+        Day day = currentDay(nowMillis);
+        long timestamp = nowMillis / 1000 + day.offsetSeconds - BEGIN_TIMESTAMP;
+        return asyncRedisConnection.async().incr("icr:" + keyPrefix + ":" + day.date)
+                .toCompletableFuture()
+                .thenApply(count -> timestamp << COUNT_LEN | count);
+    }
+
+    private Day currentDay(long nowMillis) {
+        Day day = today;
+        if (day == null || nowMillis >= day.endMillis || nowMillis < day.startMillis) {
+            day = new Day(nowMillis);
+            today = day;
+        }
+        return day;
+    }
+
+    /**
+     * 从本地号段取序列号
+     * 序列号按天计数，号段只在租用当天有效，跨天必须重新租用，否则会和当天其他节点的序列号冲突
+     */
+    private long nextSequence(String keyPrefix, String date) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.date.equals(date)) {
+                long value = segment.cursor.getAndIncrement();
+                if (value <= segment.max) {
+                    if (value == segment.prefetchAt) {
+                        buffer.prefetch(date);
+                    }
+                    return value;
+                }
+            }
+            //号段用完或已跨天，切换号段
+            buffer.switchSegment(segment, date);
+        }
+    }
+
+    /**
+     * 租用号段 INCRBY icr:{keyPrefix}:{date} step
+     */
+    private Segment lease(String keyPrefix, String date) {
+        long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentStep);
+        long start = end - segmentStep + 1;
+        long prefetchAt = start + (long) (segmentStep * (1 - prefetchRatio));
+        return new Segment(date, start, end, Math.min(prefetchAt, end));
+    }
+
+    /**
+     * 一个业务前缀的号段缓冲：当前号段 + 预取的下一号段
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private CompletableFuture<Segment> next;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        synchronized void prefetch(String date) {
+            if (next == null) {
+                next = CompletableFuture.supplyAsync(() -> lease(keyPrefix, date), SEGMENT_PREFETCH_EXECUTOR);
+            }
+        }
+
+        synchronized void switchSegment(Segment used, String date) {
+            //其他线程已经切换过了
+            if (current != used) {
+                return;
+            }
+            Segment segment = null;
+            if (next != null) {
+                try {
+                    segment = next.join();
+                } catch (Exception e) {
+                    log.error("预取号段失败，同步重新租用", e);
+                }
+                next = null;
+            }
+            //没有预取到，或者预取的是前一天的号段
+            if (segment == null || !segment.date.equals(date)) {
+                segment = lease(keyPrefix, date);
+            }
+            current = segment;
+        }
+    }
+
+    /**
+     * 号段 [cursor, max]
+     */
+    private static class Segment {
+        private final String date;
+        private final long max;
+        private final long prefetchAt;
+        private final AtomicLong cursor;
+
+        Segment(String date, long start, long max, long prefetchAt) {
+            this.date = date;
+            this.max = max;
+            this.prefetchAt = prefetchAt;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 当天信息：日期字符串、当天起止毫秒、时区偏移
+     */
+    private static class Day {
+        private final String date;
+        private final long startMillis;
+        private final long endMillis;
+        private final int offsetSeconds;
+
+        Day(long nowMillis) {
+            ZoneId zone = ZoneId.systemDefault();
+            ZonedDateTime now = ZonedDateTime.ofInstant(Instant.ofEpochMilli(nowMillis), zone);
+            LocalDate localDate = now.toLocalDate();
+            this.date = localDate.format(DATE_FORMATTER);
+            this.startMillis = localDate.atStartOfDay(zone).toInstant().toEpochMilli();
+            this.endMillis = localDate.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+            this.offsetSeconds = now.getOffset().getTotalSeconds();
+        }
+    }
+
     public static void main(String[] args) {
         //获取基时间戳
         LocalDateTime time = LocalDateTime.of(2022, 1, 1, 0, 0, 0);
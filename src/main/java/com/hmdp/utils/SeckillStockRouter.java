@@ -0,0 +1,681 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.hmdp.constant.RedisConstants.ORDER_STATUS_KEY;
+import static com.hmdp.constant.RedisConstants.SECKILL_BUYERS_KEY;
+import static com.hmdp.constant.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.constant.RedisConstants.SECKILL_SHARDS_KEY;
+import static com.hmdp.constant.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.constant.RedisConstants.SECKILL_VOUCHER_KEY;
+import static com.hmdp.constant.RedisConstants.STREAM_ORDERS_KEY;
+
+/**
+ *  秒杀库存路由
+ *  普通模式：库存 seckill:stock:{voucherId}，已下单用户 seckill:order:{voucherId}
+ *  分片模式：库存拆成K个分片 seckill:stock:{voucherId:i}，已下单用户按用户所在分片存 seckill:order:{voucherId:i}，
+ *  同一分片的两个key哈希标签相同，在集群中落在同一个slot上，热点券的流量就被分散到K个slot上。
+ *  优惠券信息hash（活动起止时间）普通模式为 seckill:voucher:{voucherId}，分片模式每个分片一份 seckill:voucher:{voucherId:i}。
+ *  分片模式的脚本只访问本分片slot里的key：订单消息（stream.orders）和排队中状态在脚本扣减成功后由这里写入，
+ *  写入失败时归还库存、释放一人一单的占位；节点在两步之间宕机留下的差异由对账任务发现并修复。
+ */
+@Component
+public class SeckillStockRouter {
+
+    /**
+     * 脚本返回值：成功
+     */
+    public static final int OK = 0;
+    /**
+     * 脚本返回值：库存不足
+     */
+    public static final int SOLD_OUT = 1;
+    /**
+     * 脚本返回值：重复下单
+     */
+    public static final int DUPLICATE = 2;
+    /**
+     * 脚本返回值：活动尚未开始
+     */
+    public static final int NOT_BEGUN = 3;
+    /**
+     * 脚本返回值：活动已经结束
+     */
+    public static final int ENDED = 4;
+    /**
+     * 脚本返回值：用户所在分片无货，已占位（仅分片模式内部使用）
+     */
+    private static final int SHARD_EMPTY = 5;
+
+    private static final String PURCHASERS_BITMAP = "bitmap";
+
+    //lua脚本
+    private final static DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private final static DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
+    private final static DefaultRedisScript<Long> PURCHASER_MIGRATE_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);    //设置返回值类型
+        SECKILL_SHARD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SECKILL_SHARD_SCRIPT.setResultType(Long.class);
+        PURCHASER_MIGRATE_SCRIPT = new DefaultRedisScript<>();
+        PURCHASER_MIGRATE_SCRIPT.setLocation(new ClassPathResource("purchaser_migrate.lua"));
+        PURCHASER_MIGRATE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    //Lettuce异步连接（异步秒杀接口使用）
+    private final StatefulRedisConnection<String, String> asyncRedisConnection;
+
+    //订单状态有效期（秒），由秒杀脚本写入排队中状态时设置
+    @Value("${hmdp.seckill.order-status.ttl-seconds:86400}")
+    private long statusTtlSeconds;
+
+    //已下单用户的去重方式：set（SET存用户id）或 bitmap（以用户id为偏移量，每个用户1位）
+    @Value("${hmdp.seckill.purchasers.mode:set}")
+    private String purchaserMode;
+    //bitmap在活动结束后的保留时间（毫秒），之后自动过期
+    @Value("${hmdp.seckill.purchasers.expire-after-end-ms:86400000}")
+    private long purchaserGraceMillis;
+
+    //优惠券分片数缓存，分片数在创建优惠券时确定，之后不会变化
+    private final Map<Long, Integer> shardCache = new ConcurrentHashMap<>();
+
+    public SeckillStockRouter(StringRedisTemplate stringRedisTemplate,
+                              StatefulRedisConnection<String, String> asyncRedisConnection) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.asyncRedisConnection = asyncRedisConnection;
+    }
+
+    /**
+     * 初始化秒杀库存和活动时间
+     * @param voucherId 优惠券id
+     * @param stock 总库存
+     * @param shards 分片数，小于等于1为普通模式
+     * @param beginTime 活动开始时间，可为空
+     * @param endTime 活动结束时间，可为空
+     */
+    public void initStock(Long voucherId, int stock, int shards, LocalDateTime beginTime, LocalDateTime endTime) {
+        //活动时间存入优惠券信息hash，由秒杀脚本原子校验
+        Map<String, String> window = new HashMap<>(2);
+        if (beginTime != null) {
+            window.put("begin", String.valueOf(toEpochMilli(beginTime)));
+        }
+        if (endTime != null) {
+            window.put("end", String.valueOf(toEpochMilli(endTime)));
+        }
+        if (shards <= 1) {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            if (!window.isEmpty()) {
+                stringRedisTemplate.opsForHash().putAll(SECKILL_VOUCHER_KEY + voucherId, window);
+            }
+            shardCache.put(voucherId, 1);
+            return;
+        }
+        //库存平均分到每个分片，余数分给前几个分片；活动时间每个分片存一份，保证脚本只访问同一个slot
+        Map<String, String> buckets = new HashMap<>(shards);
+        for (int i = 0; i < shards; i++) {
+            int bucketStock = stock / shards + (i < stock % shards ? 1 : 0);
+            buckets.put(stockKey(voucherId, i), String.valueOf(bucketStock));
+            if (!window.isEmpty()) {
+                stringRedisTemplate.opsForHash().putAll(voucherKey(voucherId, i), window);
+            }
+        }
+        stringRedisTemplate.opsForValue().multiSet(buckets);
+        stringRedisTemplate.opsForValue().set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+        shardCache.put(voucherId, shards);
+    }
+
+    /**
+     * 只登记分片数，库存等到预热时再加载（分片数不落库，创建时先记下）
+     */
+    public void registerShards(Long voucherId, int shards) {
+        if (shards > 1) {
+            stringRedisTemplate.opsForValue().set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+        }
+        shardCache.put(voucherId, Math.max(1, shards));
+    }
+
+    /**
+     * 库存是否已加载到Redis
+     */
+    public boolean isStockLoaded(Long voucherId) {
+        return Boolean.TRUE.equals(stringRedisTemplate.hasKey(stockKeys(voucherId).get(0)));
+    }
+
+    /**
+     * 执行秒杀脚本
+     * @return 0成功，1库存不足，2重复下单，3活动未开始，4活动已结束
+     */
+    public int execute(Long voucherId, Long userId, long orderId) {
+        int shards = shardCount(voucherId);
+        if (shards <= 1) {
+            /*lua脚本中参数都是String类型，传参时，注意要将参数类型转为String*/
+            Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
+                    Arrays.asList(scriptKeys(voucherId, shards, 0, orderId)), scriptArgs(voucherId, userId, orderId, shards, false));
+            return result.intValue();
+        }
+        //1.先在用户所在分片抢
+        int home = homeShard(userId, shards);
+        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
+                Arrays.asList(scriptKeys(voucherId, shards, home, orderId)), scriptArgs(voucherId, userId, orderId, shards, true));
+        int r = result.intValue();
+        if (r == OK) {
+            enqueue(voucherId, userId, orderId, home);
+        }
+        if (r != SHARD_EMPTY) {
+            return r;
+        }
+        //2.用户所在分片无货，依次到兄弟分片扣减库存
+        for (int i = 1; i < shards; i++) {
+            int sibling = (home + i) % shards;
+            result = stringRedisTemplate.execute(SECKILL_SHARD_SCRIPT,
+                    Collections.singletonList(stockKey(voucherId, sibling)), voucherId.toString());
+            if (result.intValue() == OK) {
+                enqueue(voucherId, userId, orderId, sibling);
+                return OK;
+            }
+        }
+        //3.所有分片都无货，释放占位
+        removePurchaser(voucherId, userId);
+        return SOLD_OUT;
+    }
+
+    /**
+     * 异步执行秒杀脚本，逻辑与 {@link #execute} 完全一致，命令通过Lettuce异步发送，不阻塞调用线程
+     * （分片数第一次查询时会同步读取一次，之后走本地缓存）
+     * @return 0成功，1库存不足，2重复下单，3活动未开始，4活动已结束
+     */
+    public CompletableFuture<Integer> executeAsync(Long voucherId, Long userId, long orderId) {
+        int shards = shardCount(voucherId);
+        if (shards <= 1) {
+            return evalAsync(SECKILL_SCRIPT, scriptKeys(voucherId, shards, 0, orderId), scriptArgs(voucherId, userId, orderId, shards, false))
+                    .thenApply(Long::intValue);
+        }
+        //1.先在用户所在分片抢
+        int home = homeShard(userId, shards);
+        return evalAsync(SECKILL_SCRIPT, scriptKeys(voucherId, shards, home, orderId), scriptArgs(voucherId, userId, orderId, shards, true))
+                .thenCompose(r -> {
+                    if (r.intValue() == OK) {
+                        return enqueueAsync(voucherId, userId, orderId, home);
+                    }
+                    return r.intValue() != SHARD_EMPTY
+                            ? CompletableFuture.completedFuture(r.intValue())
+                            //2.用户所在分片无货，依次到兄弟分片扣减库存
+                            : trySiblingAsync(voucherId, userId, orderId, home, 1, shards);
+                });
+    }
+
+    private CompletableFuture<Integer> trySiblingAsync(Long voucherId, Long userId, long orderId, int home, int i, int shards) {
+        if (i >= shards) {
+            //3.所有分片都无货，释放占位
+            RedisAsyncCommands<String, String> async = asyncRedisConnection.async();
+            CompletableFuture<?> release = isBitmap()
+                    ? async.setbit(purchaserKey(voucherId, shards, home), purchaserOffset(userId, shards), 0).toCompletableFuture()
+                    : async.srem(orderKey(voucherId, home), userId.toString()).toCompletableFuture();
+            return release.thenApply(removed -> SOLD_OUT);
+        }
+        int sibling = (home + i) % shards;
+        return evalAsync(SECKILL_SHARD_SCRIPT, new String[]{stockKey(voucherId, sibling)}, voucherId.toString())
+                .thenCompose(r -> r.intValue() == OK
+                        ? enqueueAsync(voucherId, userId, orderId, sibling)
+                        : trySiblingAsync(voucherId, userId, orderId, home, i + 1, shards));
+    }
+
+    /**
+     * 分片模式下单成功后写入订单消息和排队中状态（一次pipeline），写入失败时归还库存、释放占位后抛出异常
+     * @param stockShard 扣减了库存的分片
+     */
+    private void enqueue(Long voucherId, Long userId, long orderId, int stockShard) {
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                conn.xAdd(StreamRecords.string(orderMessage(voucherId, userId, orderId)).withStreamKey(STREAM_ORDERS_KEY));
+                conn.hMSet(ORDER_STATUS_KEY + orderId, queuedStatus(voucherId, userId));
+                conn.pExpire(ORDER_STATUS_KEY + orderId, TimeUnit.SECONDS.toMillis(statusTtlSeconds));
+                return null;
+            });
+        } catch (RuntimeException e) {
+            rollback(voucherId, userId, stockShard);
+            throw e;
+        }
+    }
+
+    private CompletableFuture<Integer> enqueueAsync(Long voucherId, Long userId, long orderId, int stockShard) {
+        RedisAsyncCommands<String, String> async = asyncRedisConnection.async();
+        String statusKey = ORDER_STATUS_KEY + orderId;
+        CompletableFuture<String> added = async.xadd(STREAM_ORDERS_KEY, orderMessage(voucherId, userId, orderId)).toCompletableFuture();
+        CompletableFuture<Long> status = async.hset(statusKey, queuedStatus(voucherId, userId)).toCompletableFuture();
+        CompletableFuture<Boolean> expire = async.pexpire(statusKey, TimeUnit.SECONDS.toMillis(statusTtlSeconds)).toCompletableFuture();
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        CompletableFuture.allOf(added, status, expire).whenComplete((v, e) -> {
+            if (e == null) {
+                result.complete(OK);
+                return;
+            }
+            //归还库存、释放占位（异步命令，不阻塞IO线程），再把原来的异常交给调用方
+            int shards = shardCount(voucherId);
+            int home = homeShard(userId, shards);
+            CompletableFuture<?> release = isBitmap()
+                    ? async.setbit(purchaserKey(voucherId, shards, home), purchaserOffset(userId, shards), 0).toCompletableFuture()
+                    : async.srem(orderKey(voucherId, home), userId.toString()).toCompletableFuture();
+            CompletableFuture.allOf(async.incrby(stockKey(voucherId, stockShard), 1).toCompletableFuture(), release)
+                    .whenComplete((r, ex) -> result.completeExceptionally(e));
+        });
+        return result;
+    }
+
+    //归还分片库存并释放一人一单的占位
+    private void rollback(Long voucherId, Long userId, int stockShard) {
+        stringRedisTemplate.opsForValue().increment(stockKey(voucherId, stockShard));
+        removePurchaser(voucherId, userId);
+    }
+
+    private static Map<String, String> orderMessage(Long voucherId, Long userId, long orderId) {
+        Map<String, String> message = new LinkedHashMap<>(4);
+        message.put("voucherId", voucherId.toString());
+        message.put("userId", userId.toString());
+        message.put("id", String.valueOf(orderId));
+        return message;
+    }
+
+    private static Map<String, String> queuedStatus(Long voucherId, Long userId) {
+        Map<String, String> status = new LinkedHashMap<>(4);
+        status.put("status", OrderStatusRecorder.QUEUED);
+        status.put("userId", userId.toString());
+        status.put("voucherId", voucherId.toString());
+        return status;
+    }
+
+    /**
+     * 秒杀脚本的键列表：库存key，已下单用户key（SET或bitmap），优惠券信息hash的key，旧的已下单用户SET的key（bitmap迁移期间去重用），
+     * 普通模式再加上消息队列key和订单状态key（分片模式只传本分片slot里的key）
+     */
+    private String[] scriptKeys(Long voucherId, int shards, int shard, long orderId) {
+        String orderKey = shards <= 1 ? SECKILL_ORDER_KEY + voucherId : orderKey(voucherId, shard);
+        String purchaserKey = isBitmap() ? purchaserKey(voucherId, shards, shard) : orderKey;
+        if (shards <= 1) {
+            return new String[]{SECKILL_STOCK_KEY + voucherId, purchaserKey, SECKILL_VOUCHER_KEY + voucherId, orderKey,
+                    STREAM_ORDERS_KEY, ORDER_STATUS_KEY + orderId};
+        }
+        return new String[]{stockKey(voucherId, shard), purchaserKey, voucherKey(voucherId, shard), orderKey};
+    }
+
+    /**
+     * 秒杀脚本的参数列表：优惠券id，用户id，订单id，本分片无货时是否占位，订单状态有效期，去重方式，bitmap偏移量，bitmap在活动结束后的保留时间
+     */
+    private String[] scriptArgs(Long voucherId, Long userId, long orderId, int shards, boolean reserveOnEmpty) {
+        return new String[]{voucherId.toString(), userId.toString(), String.valueOf(orderId), reserveOnEmpty ? "1" : "0",
+                String.valueOf(TimeUnit.SECONDS.toMillis(statusTtlSeconds)),
+                purchaserMode, String.valueOf(purchaserOffset(userId, shards)), String.valueOf(purchaserGraceMillis)};
+    }
+
+    /**
+     * 异步执行脚本：先EVALSHA，脚本还没加载到Redis时（NOSCRIPT）再用EVAL发送脚本内容
+     */
+    private CompletableFuture<Long> evalAsync(DefaultRedisScript<Long> script, String[] keys, String... args) {
+        RedisAsyncCommands<String, String> async = asyncRedisConnection.async();
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        async.<Long>evalsha(script.getSha1(), ScriptOutputType.INTEGER, keys, args).whenComplete((value, e) -> {
+            if (e == null) {
+                result.complete(value);
+                return;
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (!(cause instanceof RedisNoScriptException)) {
+                result.completeExceptionally(cause);
+                return;
+            }
+            async.<Long>eval(script.getScriptAsString(), ScriptOutputType.INTEGER, keys, args).whenComplete((v, ex) -> {
+                if (ex == null) {
+                    result.complete(v);
+                } else {
+                    result.completeExceptionally(ex);
+                }
+            });
+        });
+        return result;
+    }
+
+    /**
+     * 是否用bitmap记录已下单用户
+     */
+    public boolean isBitmap() {
+        return PURCHASERS_BITMAP.equals(purchaserMode);
+    }
+
+    /**
+     * bitmap模式下活动结束超过保留时间后，已下单用户已自动过期
+     */
+    public boolean purchasersExpired(LocalDateTime endTime) {
+        return isBitmap() && endTime != null
+                && toEpochMilli(endTime) + purchaserGraceMillis < System.currentTimeMillis();
+    }
+
+    /**
+     * 已下单用户数（各分片之和；bitmap迁移期间加上旧SET中的用户数）
+     */
+    public long purchaserCount(Long voucherId) {
+        int shards = shardCount(voucherId);
+        long count = 0;
+        for (int i = 0; i < Math.max(1, shards); i++) {
+            String orderKey = shards <= 1 ? SECKILL_ORDER_KEY + voucherId : orderKey(voucherId, i);
+            Long size = stringRedisTemplate.opsForSet().size(orderKey);
+            count += size == null ? 0 : size;
+            if (isBitmap()) {
+                byte[] key = purchaserKey(voucherId, shards, i).getBytes(StandardCharsets.UTF_8);
+                Long bits = stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.stringCommands().bitCount(key));
+                count += bits == null ? 0 : bits;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 记录已下单用户
+     */
+    public void addPurchaser(Long voucherId, Long userId) {
+        int shards = shardCount(voucherId);
+        if (!isBitmap()) {
+            stringRedisTemplate.opsForSet().add(orderKeyOfUser(voucherId, userId), userId.toString());
+            return;
+        }
+        String key = purchaserKey(voucherId, shards, shards <= 1 ? 0 : homeShard(userId, shards));
+        stringRedisTemplate.opsForValue().setBit(key, purchaserOffset(userId, shards), true);
+        expireAfterEnd(voucherId, shards, key);
+    }
+
+    /**
+     * 移除已下单用户（bitmap模式下同时从旧SET中移除）
+     */
+    public void removePurchaser(Long voucherId, Long userId) {
+        int shards = shardCount(voucherId);
+        stringRedisTemplate.opsForSet().remove(orderKeyOfUser(voucherId, userId), userId.toString());
+        if (isBitmap()) {
+            String key = purchaserKey(voucherId, shards, shards <= 1 ? 0 : homeShard(userId, shards));
+            stringRedisTemplate.opsForValue().setBit(key, purchaserOffset(userId, shards), false);
+        }
+    }
+
+    /**
+     * 订单取消后归还库存并移除已下单用户（一次pipeline）
+     * 库存加回到用户所在分片（下单时可能是从其它分片扣的，各分片之和不变即可）
+     * @param userIds 被取消订单的用户
+     */
+    public void releaseStock(Long voucherId, List<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        int shards = shardCount(voucherId);
+        Map<Integer, Long> returned = new HashMap<>();
+        for (Long userId : userIds) {
+            returned.merge(shards <= 1 ? 0 : homeShard(userId, shards), 1L, Long::sum);
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<Integer, Long> entry : returned.entrySet()) {
+                String stockKey = shards <= 1 ? SECKILL_STOCK_KEY + voucherId : stockKey(voucherId, entry.getKey());
+                connection.stringCommands().incrBy(stockKey.getBytes(StandardCharsets.UTF_8), entry.getValue());
+            }
+            for (Long userId : userIds) {
+                int shard = shards <= 1 ? 0 : homeShard(userId, shards);
+                String orderKey = shards <= 1 ? SECKILL_ORDER_KEY + voucherId : orderKey(voucherId, shard);
+                connection.setCommands().sRem(orderKey.getBytes(StandardCharsets.UTF_8),
+                        userId.toString().getBytes(StandardCharsets.UTF_8));
+                if (isBitmap()) {
+                    connection.stringCommands().setBit(purchaserKey(voucherId, shards, shard).getBytes(StandardCharsets.UTF_8),
+                            purchaserOffset(userId, shards), false);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 分批遍历已下单用户：SET用SSCAN，bitmap用GETRANGE分段读取后解析出置位的用户
+     * @param batchSize 每批数量（bitmap模式下为每次读取的字节数）
+     */
+    public void scanPurchasers(Long voucherId, int batchSize, Consumer<List<Long>> handler) {
+        int shards = shardCount(voucherId);
+        for (int i = 0; i < Math.max(1, shards); i++) {
+            String orderKey = shards <= 1 ? SECKILL_ORDER_KEY + voucherId : orderKey(voucherId, i);
+            List<Long> batch = new ArrayList<>(batchSize);
+            try (Cursor<String> members = stringRedisTemplate.opsForSet().scan(orderKey, ScanOptions.scanOptions().count(batchSize).build())) {
+                while (members.hasNext()) {
+                    batch.add(Long.valueOf(members.next()));
+                    if (batch.size() >= batchSize) {
+                        handler.accept(batch);
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                handler.accept(batch);
+            }
+            if (isBitmap()) {
+                scanBitmap(purchaserKey(voucherId, shards, i).getBytes(StandardCharsets.UTF_8), Math.max(1, shards), i, batchSize, handler);
+            }
+        }
+    }
+
+    private void scanBitmap(byte[] key, int shards, int shard, int chunkBytes, Consumer<List<Long>> handler) {
+        for (long start = 0; ; start += chunkBytes) {
+            long from = start;
+            byte[] chunk = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                    connection.stringCommands().getRange(key, from, from + chunkBytes - 1));
+            if (chunk == null || chunk.length == 0) {
+                return;
+            }
+            List<Long> userIds = new ArrayList<>();
+            for (int b = 0; b < chunk.length; b++) {
+                if (chunk[b] == 0) {
+                    continue;
+                }
+                for (int bit = 0; bit < 8; bit++) {
+                    //Redis的bitmap偏移量0是第一个字节的最高位
+                    if ((chunk[b] & (0x80 >>> bit)) != 0) {
+                        long offset = (from + b) * 8 + bit;
+                        userIds.add(offset * shards + shard);
+                    }
+                }
+            }
+            if (!userIds.isEmpty()) {
+                handler.accept(userIds);
+            }
+            if (chunk.length < chunkBytes) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 把旧的已下单用户SET迁移到bitmap：每批由脚本原子地SPOP + SETBIT，SET取空后自动删除
+     * 迁移期间秒杀脚本同时检查bitmap和旧SET，新下单的用户只写入bitmap，所以旧SET只会减少不会增加；
+     * 取消订单的SREM/SETBIT 0与迁移脚本互斥，已取消的用户不会被重新写入bitmap
+     * @return 迁移的用户数
+     */
+    public long migratePurchasers(Long voucherId, int batchSize) {
+        if (!isBitmap()) {
+            return 0;
+        }
+        int shards = shardCount(voucherId);
+        long migrated = 0;
+        for (int i = 0; i < Math.max(1, shards); i++) {
+            String orderKey = shards <= 1 ? SECKILL_ORDER_KEY + voucherId : orderKey(voucherId, i);
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(orderKey))) {
+                continue;
+            }
+            String bitmapKey = purchaserKey(voucherId, shards, i);
+            while (true) {
+                Long moved = stringRedisTemplate.execute(PURCHASER_MIGRATE_SCRIPT, Arrays.asList(orderKey, bitmapKey),
+                        String.valueOf(batchSize), String.valueOf(Math.max(1, shards)));
+                migrated += moved == null ? 0 : moved;
+                if (moved == null || moved < batchSize) {
+                    break;
+                }
+            }
+            expireAfterEnd(voucherId, shards, bitmapKey);
+        }
+        return migrated;
+    }
+
+    /**
+     * bitmap在活动结束后保留一段时间自动过期（已设置过期时间的不再设置）
+     */
+    private void expireAfterEnd(Long voucherId, int shards, String bitmapKey) {
+        String metaKey = shards <= 1 ? SECKILL_VOUCHER_KEY + voucherId : voucherKey(voucherId, 0);
+        Object end = stringRedisTemplate.opsForHash().get(metaKey, "end");
+        Long ttl = stringRedisTemplate.getExpire(bitmapKey);
+        if (end != null && ttl != null && ttl == -1) {
+            stringRedisTemplate.expireAt(bitmapKey, new Date(Long.parseLong(end.toString()) + purchaserGraceMillis));
+        }
+    }
+
+    /**
+     * 查询优惠券分片数
+     */
+    public int shardCount(Long voucherId) {
+        return shardCache.computeIfAbsent(voucherId, id -> {
+            String shards = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + id);
+            return StrUtil.isBlank(shards) ? 1 : Integer.parseInt(shards);
+        });
+    }
+
+    /**
+     * 一次MGET查询多个优惠券的实时库存（分片模式为各分片之和）
+     * @return 优惠券id -> 库存，库存未加载到Redis的不包含在内
+     */
+    public Map<Long, Long> liveStocks(List<Long> voucherIds) {
+        Map<Long, Long> result = new HashMap<>(voucherIds.size());
+        if (voucherIds.isEmpty()) {
+            return result;
+        }
+        List<String> keys = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>(voucherIds.size());
+        for (Long voucherId : voucherIds) {
+            List<String> stockKeys = stockKeys(voucherId);
+            keys.addAll(stockKeys);
+            counts.add(stockKeys.size());
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (values == null) {
+            return result;
+        }
+        int index = 0;
+        for (int i = 0; i < voucherIds.size(); i++) {
+            List<String> stocks = values.subList(index, index + counts.get(i));
+            index += counts.get(i);
+            if (stocks.stream().noneMatch(StrUtil::isBlank)) {
+                result.put(voucherIds.get(i), stocks.stream().mapToLong(Long::parseLong).sum());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 优惠券全部库存key
+     */
+    public List<String> stockKeys(Long voucherId) {
+        int shards = shardCount(voucherId);
+        if (shards <= 1) {
+            return Collections.singletonList(SECKILL_STOCK_KEY + voucherId);
+        }
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(stockKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    /**
+     * 优惠券全部已下单用户key
+     */
+    public List<String> orderKeys(Long voucherId) {
+        int shards = shardCount(voucherId);
+        if (shards <= 1) {
+            return Collections.singletonList(SECKILL_ORDER_KEY + voucherId);
+        }
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(orderKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    /**
+     * 用户所属的已下单用户key
+     */
+    public String orderKeyOfUser(Long voucherId, Long userId) {
+        int shards = shardCount(voucherId);
+        if (shards <= 1) {
+            return SECKILL_ORDER_KEY + voucherId;
+        }
+        return orderKey(voucherId, homeShard(userId, shards));
+    }
+
+    private static int homeShard(Long userId, int shards) {
+        return (int) Math.floorMod(userId, (long) shards);
+    }
+
+    //哈希标签 {voucherId:i}，同一分片的库存和已下单用户落在同一个slot
+    private static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    //已下单用户bitmap：普通模式 seckill:buyers:{voucherId}，分片模式与分片的其它key同一个哈希标签
+    private static String purchaserKey(Long voucherId, int shards, int shard) {
+        if (shards <= 1) {
+            return SECKILL_BUYERS_KEY + voucherId;
+        }
+        return SECKILL_BUYERS_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    //bitmap偏移量：分片模式下每个分片只存 userId % K == shard 的用户，偏移量除以K保持紧凑
+    private static long purchaserOffset(Long userId, int shards) {
+        return shards <= 1 ? userId : Math.floorDiv(userId, (long) shards);
+    }
+
+    private static String voucherKey(Long voucherId, int shard) {
+        return SECKILL_VOUCHER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,142 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.crypto.SecureUtil;
+import com.hmdp.dto.SeckillTicketDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.constant.RedisConstants.SECKILL_QUEUE_KEY;
+
+/**
+ *  秒杀排队（虚拟等候室）
+ *  抢购开始时，用户先领取排队号，按每个优惠券配置的速率依次放行：第p个号的放行时间 = 开始时间 + (p - 1) / rate。
+ *  排队凭证是对 优惠券id:用户id:放行时间 的签名，抢购时本地验签即可，不用再访问Redis。
+ *  库存售罄后不再发号。
+ */
+@Component
+public class SeckillWaitingRoom {
+
+    private final static DefaultRedisScript<List> TICKET_SCRIPT;
+    static {
+        TICKET_SCRIPT = new DefaultRedisScript<>();
+        TICKET_SCRIPT.setLocation(new ClassPathResource("seckill_ticket.lua"));
+        TICKET_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStockRouter seckillStockRouter;
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    //是否开启排队
+    @Value("${hmdp.seckill.waiting-room.enabled:false}")
+    private boolean enabled;
+    //默认每秒放行人数
+    @Value("${hmdp.seckill.waiting-room.rate:500}")
+    private int defaultRate;
+    //排队凭证签名密钥，所有节点必须一致，从环境变量 HMDP_WAITING_ROOM_SECRET 读取，不能写在配置文件里
+    @Value("${hmdp.seckill.waiting-room.secret:}")
+    private String secret;
+    //排队信息有效期（小时）
+    @Value("${hmdp.seckill.waiting-room.ttl-hours:24}")
+    private long ttlHours;
+
+    @PostConstruct
+    private void init() {
+        //密钥泄露后任何人都能伪造排队凭证，开启排队时必须配置
+        if (enabled && StrUtil.isBlank(secret)) {
+            throw new IllegalStateException("开启秒杀排队时必须配置排队凭证签名密钥（环境变量 HMDP_WAITING_ROOM_SECRET）");
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 设置优惠券的放行速率（每秒）
+     */
+    public void setRate(Long voucherId, int rate) {
+        stringRedisTemplate.opsForHash().put(queueKey(voucherId), "rate", String.valueOf(rate));
+    }
+
+    /**
+     * 领取排队号
+     * @param beginMillis 活动开始时间，早于当前时间则从当前时间开始放行
+     * @return 排队信息，已售罄返回null
+     */
+    public SeckillTicketDTO issue(Long voucherId, Long userId, long beginMillis) {
+        // 1.已售罄不再发号
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return null;
+        }
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(seckillStockRouter.stockKeys(voucherId));
+        //库存还没加载（活动未预热）时照常发号
+        if (stocks != null && stocks.stream().noneMatch(StrUtil::isBlank)
+                && stocks.stream().mapToLong(Long::parseLong).sum() <= 0) {
+            soldOutRegistry.markSoldOut(voucherId);
+            return null;
+        }
+        // 2.领号
+        long now = System.currentTimeMillis();
+        List<?> result = stringRedisTemplate.execute(TICKET_SCRIPT,
+                Arrays.asList(queueKey(voucherId), queueKey(voucherId) + ":tickets"),
+                userId.toString(), String.valueOf(Math.max(now, beginMillis)), String.valueOf(defaultRate),
+                String.valueOf(TimeUnit.HOURS.toMillis(ttlHours)));
+        long position = ((Number) result.get(0)).longValue();
+        long start = ((Number) result.get(1)).longValue();
+        long rate = Math.max(1, ((Number) result.get(2)).longValue());
+        // 3.计算放行时间并签发凭证
+        long admitTime = start + (position - 1) * 1000 / rate;
+        SeckillTicketDTO ticket = new SeckillTicketDTO();
+        ticket.setPosition(position);
+        ticket.setAdmitTime(admitTime);
+        ticket.setWaitMillis(Math.max(0, admitTime - now));
+        ticket.setTicket(admitTime + "." + sign(voucherId, userId, admitTime));
+        return ticket;
+    }
+
+    /**
+     * 校验排队凭证：签名正确且已到放行时间
+     */
+    public boolean isAdmitted(Long voucherId, Long userId, String ticket) {
+        if (StrUtil.isBlank(ticket) || !ticket.contains(".")) {
+            return false;
+        }
+        String[] parts = ticket.split("\\.", 2);
+        long admitTime;
+        try {
+            admitTime = Long.parseLong(parts[0]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        byte[] expected = sign(voucherId, userId, admitTime).getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(expected, parts[1].getBytes(StandardCharsets.UTF_8))) {
+            return false;
+        }
+        return System.currentTimeMillis() >= admitTime;
+    }
+
+    private String sign(Long voucherId, Long userId, long admitTime) {
+        return SecureUtil.hmacSha256(secret).digestHex(voucherId + ":" + userId + ":" + admitTime);
+    }
+
+    //哈希标签 {voucherId}，排队信息和用户排队号落在同一个slot
+    private static String queueKey(Long voucherId) {
+        return SECKILL_QUEUE_KEY + "{" + voucherId + "}";
+    }
+}
@@ -0,0 +1,177 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static com.hmdp.constant.RedisConstants.ID_WORKER_KEY;
+import static com.hmdp.constant.RedisConstants.ID_WORKER_LAST_KEY;
+
+/**
+ *  本地雪花ID生成器（每个ID不需要访问Redis）
+ *  ID结构：1位符号位 + 1位类型位（固定为1）+ 40位毫秒时间戳（从BEGIN_TIMESTAMP起）+ 10位workerId + 12位毫秒内序列号
+ *  RedisIdWorker的ID是 秒级时间戳 << 32 | 序列号，时间戳在2056年前不会用到第62位，所以类型位为1的雪花ID
+ *  比任何RedisIdWorker的ID都大，两者不会重复；从redis切换到snowflake后新ID仍然大于旧ID（反过来切换不保证递增）。
+ *  workerId启动时从Redis租用（SET NX + 过期时间），后台定时续约，停机时释放。
+ *  开启方式：hmdp.id.generator=snowflake
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.id", name = "generator", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IdGenerator {
+
+    private static final long EPOCH_MILLIS = RedisIdWorker.BEGIN_TIMESTAMP * 1000;
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int TIMESTAMP_BITS = 40;
+    /**
+     * 类型位（第62位），与RedisIdWorker的ID区分开
+     */
+    static final long TYPE_BIT = 1L << (TIMESTAMP_BITS + WORKER_BITS + SEQUENCE_BITS);
+    private static final long MAX_TIMESTAMP = (1L << TIMESTAMP_BITS) - 1;
+    private static final int MAX_WORKER_ID = (1 << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    //续约脚本
+    private final static DefaultRedisScript<Long> RENEW_SCRIPT;
+    //释放脚本（与释放锁逻辑相同：标识一致才删除）
+    private final static DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //workerId租约有效期（秒），每1/3有效期续约一次
+    @Value("${hmdp.id.snowflake.lease-ttl-seconds:30}")
+    private long leaseTtlSeconds;
+
+    //租约标识，区分是不是自己租到的workerId
+    private final String leaseToken = UUID.randomUUID().toString(true);
+    private volatile long workerId = -1;
+    //最后一次续约成功的时间，超过租约有效期没续约成功就不能再发号（workerId可能已被别的节点租走）
+    private volatile long lastRenewMillis;
+    //状态：(时间戳 << 12) | 序列号，CAS更新，序列号溢出时自动进位到下一毫秒
+    private final AtomicLong state = new AtomicLong();
+
+    //时钟（测试时替换）
+    LongSupplier clock = System::currentTimeMillis;
+
+    private final ScheduledExecutorService heartbeatExecutor =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("id-worker-heartbeat-", true));
+
+    @PostConstruct
+    private void init() {
+        lease();
+        long period = Math.max(1, TimeUnit.SECONDS.toMillis(leaseTtlSeconds) / 3);
+        heartbeatExecutor.scheduleAtFixedRate(this::renew, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        heartbeatExecutor.shutdownNow();
+        stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(ID_WORKER_KEY + workerId), leaseToken);
+    }
+
+    /**
+     * 生成唯一ID（keyPrefix不参与计算，仅为与RedisIdWorker保持一致）
+     */
+    @Override
+    public long nextId(String keyPrefix) {
+        long worker = workerId;
+        if (worker < 0 || clock.getAsLong() - lastRenewMillis > TimeUnit.SECONDS.toMillis(leaseTtlSeconds)) {
+            throw new IllegalStateException("workerId租约已失效，暂停发号");
+        }
+        while (true) {
+            long now = clock.getAsLong() - EPOCH_MILLIS;
+            long prev = state.get();
+            long prevTimestamp = prev >>> SEQUENCE_BITS;
+            long next;
+            if (now > prevTimestamp) {
+                //新的一毫秒，序列号从0开始
+                next = now << SEQUENCE_BITS;
+            } else {
+                //同一毫秒，或者时钟回拨：沿用上次的时间戳继续自增，序列号用完自动进位到下一毫秒，保证不重复
+                next = prev + 1;
+            }
+            if ((next >>> SEQUENCE_BITS) > MAX_TIMESTAMP) {
+                throw new IllegalStateException("雪花ID时间戳已用完");
+            }
+            if (state.compareAndSet(prev, next)) {
+                return TYPE_BIT
+                        | (next >>> SEQUENCE_BITS) << (WORKER_BITS + SEQUENCE_BITS)
+                        | worker << SEQUENCE_BITS
+                        | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    /**
+     * 租用workerId：依次尝试 SET id:worker:{n} token NX EX ttl
+     */
+    private synchronized void lease() {
+        long ttlMillis = TimeUnit.SECONDS.toMillis(leaseTtlSeconds);
+        for (int id = 0; id <= MAX_WORKER_ID; id++) {
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, leaseToken, ttlMillis, TimeUnit.MILLISECONDS);
+            if (!Boolean.TRUE.equals(success)) {
+                continue;
+            }
+            //同一个workerId上次发放到的时间戳，加上一个续约周期的余量，避免重启后时钟回拨造成重复
+            String last = stringRedisTemplate.opsForValue().get(ID_WORKER_LAST_KEY + id);
+            long lastTimestamp = StrUtil.isBlank(last) ? 0 : Long.parseLong(last) + ttlMillis / 3;
+            long now = clock.getAsLong() - EPOCH_MILLIS;
+            state.set(Math.max(now, lastTimestamp) << SEQUENCE_BITS);
+            lastRenewMillis = clock.getAsLong();
+            workerId = id;
+            log.info("租用workerId成功：{}", id);
+            return;
+        }
+        throw new IllegalStateException("没有可用的workerId");
+    }
+
+    /**
+     * 续约，续约失败（租约已被别人拿走）则重新租用
+     */
+    private void renew() {
+        try {
+            long lastTimestamp = state.get() >>> SEQUENCE_BITS;
+            Long result = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Arrays.asList(ID_WORKER_KEY + workerId, ID_WORKER_LAST_KEY + workerId),
+                    leaseToken, String.valueOf(TimeUnit.SECONDS.toMillis(leaseTtlSeconds)), String.valueOf(lastTimestamp));
+            if (result != null && result == 1) {
+                lastRenewMillis = clock.getAsLong();
+                return;
+            }
+            log.error("workerId：{} 租约已丢失，重新租用", workerId);
+            workerId = -1;
+            lease();
+        } catch (Exception e) {
+            log.error("workerId续约异常", e);
+        }
+    }
+}
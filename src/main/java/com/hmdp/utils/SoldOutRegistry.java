@@ -0,0 +1,99 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.constant.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.hmdp.constant.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ *  本地售罄标记
+ *  秒杀脚本第一次返回库存不足时，在本机内存中标记该优惠券已售罄，并通过Redis发布订阅通知其他节点，
+ *  之后的请求直接在本机拒绝，不再生成订单id、执行lua脚本。
+ *  库存回补时清除标记并通知其他节点。发布订阅的消息可能丢失，所以标记带有效期，过期后重新以Redis为准。
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry implements MessageListener {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //本地标记有效期（秒）
+    @Value("${hmdp.seckill.sold-out.ttl-seconds:60}")
+    private long ttlSeconds;
+
+    //优惠券id -> 标记过期时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this,
+                Arrays.asList(new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL), new ChannelTopic(SECKILL_RESTOCK_CHANNEL)));
+    }
+
+    /**
+     * 判断优惠券是否已售罄
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记优惠券已售罄，并通知其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        //已经标记过的不再重复广播
+        if (soldOut.put(voucherId, expireAt()) == null) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+    }
+
+    /**
+     * 库存回补，清除售罄标记，并通知其他节点
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+        if (SECKILL_SOLD_OUT_CHANNEL.equals(channel)) {
+            soldOut.put(voucherId, expireAt());
+        } else {
+            soldOut.remove(voucherId);
+        }
+        log.debug("收到售罄标记变更，channel：{}，优惠券：{}", channel, voucherId);
+    }
+
+    private long expireAt() {
+        return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttlSeconds);
+    }
+}
@@ -0,0 +1,283 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.hmdp.constant.RedisConstants.SECKILL_STOCK_CHANNEL;
+
+/**
+ *  优惠券实时库存推送（SSE）
+ *  秒杀脚本扣减库存后向 seckill:channel:stock:{voucherId} 发布消息。每个节点每个优惠券只订阅一次（有客户端连接时订阅，
+ *  最后一个客户端断开时取消订阅），收到消息只打上"有变化"标记；推送线程每隔固定间隔把有变化的优惠券一次MGET读出实时库存，
+ *  推送给该优惠券的所有连接。一个优惠券在一个间隔内无论扣减多少次，每个客户端最多收到一次推送。
+ *  推送线程只负责读库存，写SSE交给发送线程池：每个连接同时最多一个发送任务，上一次还没写完时跳过（下一轮推送最新库存），
+ *  超过发送超时仍没写完的慢客户端直接断开，不会拖慢其它连接。
+ *  卡在阻塞写上的线程无法从外部打断，要等Tomcat的写超时（server.tomcat.connection-timeout）抛出异常才会释放，
+ *  期间每卡住一个线程，线程池临时补一个线程，最多补 send-threads 个；同时卡住的更多时，剩余线程在写超时之前会被占满。
+ */
+@Slf4j
+@Component
+public class StockStreamHub {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private SeckillStockRouter seckillStockRouter;
+
+    //推送合并间隔（毫秒）
+    @Value("${hmdp.seckill.stock-stream.interval-ms:500}")
+    private long intervalMillis;
+    //SSE连接超时时间（毫秒）
+    @Value("${hmdp.seckill.stock-stream.timeout-ms:1800000}")
+    private long timeoutMillis;
+    //发送线程数
+    @Value("${hmdp.seckill.stock-stream.send-threads:4}")
+    private int sendThreads;
+    //发送队列长度，队列满时跳过本次推送
+    @Value("${hmdp.seckill.stock-stream.send-queue:10000}")
+    private int sendQueue;
+    //单次发送超过该时间（毫秒）仍没完成的客户端断开
+    @Value("${hmdp.seckill.stock-stream.send-timeout-ms:5000}")
+    private long sendTimeoutMillis;
+
+    //优惠券id -> 订阅
+    private final Map<Long, Feed> feeds = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flushExecutor =
+            Executors.newSingleThreadScheduledExecutor(ThreadUtil.newNamedThreadFactory("stock-stream-", true));
+    private ThreadPoolExecutor sendExecutor;
+    //卡在慢客户端上、已由线程池临时补上的发送线程数
+    private int stalledSends;
+
+    @PostConstruct
+    private void init() {
+        sendExecutor = new ThreadPoolExecutor(sendThreads, sendThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(sendQueue), ThreadUtil.newNamedThreadFactory("stock-stream-send-", true));
+        flushExecutor.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        flushExecutor.shutdownNow();
+        sendExecutor.shutdownNow();
+        feeds.values().forEach(feed -> feed.subscribers.forEach(subscriber -> subscriber.emitter.complete()));
+    }
+
+    /**
+     * 订阅优惠券库存，连接建立后立即推送一次当前库存
+     */
+    public SseEmitter subscribe(Long voucherId) {
+        SseEmitter emitter = new SseEmitter(timeoutMillis);
+        Subscriber subscriber = new Subscriber(emitter);
+        Feed feed = feeds.compute(voucherId, (id, existing) -> {
+            Feed f = existing == null ? new Feed(id) : existing;
+            f.subscribers.add(subscriber);
+            return f;
+        });
+        Runnable remove = () -> unsubscribe(voucherId, emitter);
+        emitter.onCompletion(remove);
+        emitter.onTimeout(remove);
+        emitter.onError(e -> remove.run());
+        Long stock = seckillStockRouter.liveStocks(Collections.singletonList(voucherId)).get(voucherId);
+        if (stock != null) {
+            send(feed, subscriber, stock);
+        }
+        return emitter;
+    }
+
+    /**
+     * 库存在脚本之外发生变化（对账修复、订单取消回补）时通知订阅的节点
+     */
+    public void publishChange(Long voucherId) {
+        stringRedisTemplate.convertAndSend(SECKILL_STOCK_CHANNEL + voucherId, voucherId.toString());
+    }
+
+    private void unsubscribe(Long voucherId, SseEmitter emitter) {
+        feeds.computeIfPresent(voucherId, (id, feed) -> {
+            feed.subscribers.removeIf(subscriber -> subscriber.emitter == emitter);
+            if (!feed.subscribers.isEmpty()) {
+                return feed;
+            }
+            //最后一个连接断开，取消订阅
+            redisMessageListenerContainer.removeMessageListener(feed, feed.topic);
+            return null;
+        });
+    }
+
+    /**
+     * 推送有变化的优惠券库存：一次MGET读出所有有变化的优惠券
+     */
+    private void flush() {
+        try {
+            long now = System.currentTimeMillis();
+            List<Feed> changed = new ArrayList<>();
+            for (Feed feed : feeds.values()) {
+                checkStalled(feed, now);
+                if (feed.dirty.compareAndSet(true, false)) {
+                    changed.add(feed);
+                }
+            }
+            if (changed.isEmpty()) {
+                return;
+            }
+            List<Long> voucherIds = new ArrayList<>(changed.size());
+            changed.forEach(feed -> voucherIds.add(feed.voucherId));
+            Map<Long, Long> stocks = seckillStockRouter.liveStocks(voucherIds);
+            for (Feed feed : changed) {
+                Long stock = stocks.get(feed.voucherId);
+                if (stock == null) {
+                    continue;
+                }
+                for (Subscriber subscriber : feed.subscribers) {
+                    //库存没变（如只是回补又被抢走）不推送
+                    if (stock != subscriber.lastStock) {
+                        send(feed, subscriber, stock);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("推送库存异常", e);
+        }
+    }
+
+    /**
+     * 发送超时的慢客户端断开，并给线程池临时补一个线程，卡住的线程在Tomcat写超时后归还
+     */
+    private void checkStalled(Feed feed, long now) {
+        for (Subscriber subscriber : feed.subscribers) {
+            synchronized (subscriber) {
+                if (!subscriber.sending.get() || subscriber.stalled || now - subscriber.sendStartMillis <= sendTimeoutMillis) {
+                    continue;
+                }
+                subscriber.stalled = true;
+            }
+            //不调用complete()：它与卡住的send()持有同一把锁，写超时后连接由容器关闭
+            log.warn("优惠券{}的库存推送超过{}ms未完成，断开慢客户端", feed.voucherId, sendTimeoutMillis);
+            unsubscribe(feed.voucherId, subscriber.emitter);
+            resizeSendPool(1);
+        }
+    }
+
+    /**
+     * 按卡住的线程数调整发送线程池大小，最多补 sendThreads 个
+     */
+    private synchronized void resizeSendPool(int delta) {
+        stalledSends += delta;
+        int size = sendThreads + Math.min(stalledSends, sendThreads);
+        if (delta > 0 && stalledSends > sendThreads) {
+            log.warn("{}个库存推送线程卡在慢客户端上，超过可补充的线程数", stalledSends);
+        }
+        //先扩最大线程数再扩核心线程数，缩小时相反，否则setCorePoolSize会抛异常
+        if (size > sendExecutor.getMaximumPoolSize()) {
+            sendExecutor.setMaximumPoolSize(size);
+            sendExecutor.setCorePoolSize(size);
+        } else {
+            sendExecutor.setCorePoolSize(size);
+            sendExecutor.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * 提交到发送线程池。上一次发送还没完成时跳过，留待下一轮推送最新库存
+     */
+    private void send(Feed feed, Subscriber subscriber, long stock) {
+        synchronized (subscriber) {
+            if (!subscriber.sending.compareAndSet(false, true)) {
+                feed.dirty.set(true);
+                return;
+            }
+            subscriber.sendStartMillis = System.currentTimeMillis();
+        }
+        try {
+            sendExecutor.execute(() -> {
+                try {
+                    subscriber.emitter.send(SseEmitter.event().name("stock").data(Math.max(0, stock)));
+                    subscriber.lastStock = stock;
+                } catch (IOException | IllegalStateException e) {
+                    //客户端已断开
+                    unsubscribe(feed.voucherId, subscriber.emitter);
+                } finally {
+                    boolean stalled;
+                    synchronized (subscriber) {
+                        subscriber.sending.set(false);
+                        stalled = subscriber.stalled;
+                    }
+                    if (stalled) {
+                        resizeSendPool(-1);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //发送队列已满，下一轮再推送
+            subscriber.sending.set(false);
+            feed.dirty.set(true);
+        }
+    }
+
+    /**
+     * 一个SSE连接，以及它的发送状态
+     */
+    private static class Subscriber {
+        private final SseEmitter emitter;
+        //是否有发送任务未完成
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private volatile long sendStartMillis;
+        //发送超时已断开，线程池为它补了一个线程
+        private boolean stalled;
+        //最后一次推送成功的库存
+        private volatile long lastStock = Long.MIN_VALUE;
+
+        Subscriber(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+    }
+
+    /**
+     * 一个优惠券的订阅：本节点该优惠券的所有SSE连接 + 一个Redis订阅
+     */
+    private class Feed implements MessageListener {
+        private final Long voucherId;
+        private final ChannelTopic topic;
+        private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+        //收到库存变化消息后置为true，推送时清除
+        private final AtomicBoolean dirty = new AtomicBoolean();
+
+        Feed(Long voucherId) {
+            this.voucherId = voucherId;
+            this.topic = new ChannelTopic(SECKILL_STOCK_CHANNEL + voucherId);
+            redisMessageListenerContainer.addMessageListener(this, topic);
+        }
+
+        @Override
+        public void onMessage(Message message, byte[] pattern) {
+            dirty.set(true);
+        }
+    }
+}
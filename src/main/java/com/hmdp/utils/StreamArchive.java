@@ -0,0 +1,373 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static com.hmdp.constant.RedisConstants.STREAM_ORDERS_KEY;
+
+/**
+ *  消息队列归档（本地只追加的分段文件）
+ *  裁剪 stream.orders 之前，把要裁掉的消息按批写入分段文件 segment-{第一条消息时间戳}.log，文件超过大小上限后滚动。
+ *  每批一帧：[4字节帧长度][1字节标志（1表示已压缩）][数据]，数据为（可选deflate压缩的）
+ *  [消息条数] + 每条 [消息id][字段数][字段名][字段值]。
+ *  写入后fsync，写到一半宕机留下的残帧在下次追加前截掉。归档可以按原消息id重放到指定stream，用于审计或重建。
+ *  追加落盘后、XTRIM之前宕机，下一轮会再次读到同一批消息：追加时跳过id不大于最后一条已归档消息的消息，重放时同样跳过id不递增的消息。
+ *  超过保留天数的分段文件由裁剪任务删除。
+ */
+@Slf4j
+@Component
+public class StreamArchive {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final byte FLAG_DEFLATE = 1;
+    //分段文件名中时间戳的位数
+    private static final int TIMESTAMP_DIGITS = 15;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //归档目录
+    @Value("${hmdp.seckill.stream-trim.archive-dir:archive/stream.orders}")
+    private String archiveDir;
+    //单个分段文件大小上限（字节）
+    @Value("${hmdp.seckill.stream-trim.segment-bytes:67108864}")
+    private long segmentBytes;
+    //是否压缩
+    @Value("${hmdp.seckill.stream-trim.compress:true}")
+    private boolean compress;
+    //分段文件保留天数，0为永久保留
+    @Value("${hmdp.seckill.stream-trim.archive-retain-days:30}")
+    private int retainDays;
+
+    //最后一条已归档消息的id，第一次追加时从归档文件中读出
+    private RecordId lastArchivedId;
+    private boolean lastArchivedLoaded;
+
+    /**
+     * 追加一批消息到当前分段文件，已归档过的消息（id不大于最后一条已归档消息）跳过
+     * @return 实际追加的消息数
+     */
+    public synchronized int append(List<MapRecord<String, Object, Object>> records) throws IOException {
+        if (!lastArchivedLoaded) {
+            lastArchivedId = readLastArchivedId();
+            lastArchivedLoaded = true;
+        }
+        List<MapRecord<String, Object, Object>> fresh = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            if (lastArchivedId == null || compare(record.getId(), lastArchivedId) > 0) {
+                fresh.add(record);
+            }
+        }
+        if (fresh.size() < records.size()) {
+            log.info("跳过{}条已归档的消息，最后归档的消息id：{}", records.size() - fresh.size(), lastArchivedId);
+        }
+        if (fresh.isEmpty()) {
+            return 0;
+        }
+        byte[] block = encode(fresh);
+        byte flag = 0;
+        if (compress) {
+            block = deflate(block);
+            flag = FLAG_DEFLATE;
+        }
+        try {
+            File segment = currentSegment(fresh.get(0).getId());
+            try (FileOutputStream out = new FileOutputStream(segment, true)) {
+                DataOutputStream data = new DataOutputStream(out);
+                data.writeInt(block.length + 1);
+                data.writeByte(flag);
+                data.write(block);
+                data.flush();
+                //落盘后才允许裁剪Redis中的消息
+                out.getFD().sync();
+            }
+        } catch (IOException e) {
+            //写入结果不确定，下次追加时重新从文件读取
+            lastArchivedLoaded = false;
+            throw e;
+        }
+        lastArchivedId = fresh.get(fresh.size() - 1).getId();
+        return fresh.size();
+    }
+
+    /**
+     * 删除超过保留天数的分段文件：下一个分段的第一条消息早于保留期限，说明该分段的消息都已过期。最后一个分段不删除
+     * @return 删除的文件数
+     */
+    public synchronized int purgeExpired() {
+        if (retainDays <= 0) {
+            return 0;
+        }
+        long deadline = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retainDays);
+        File[] segments = segments();
+        int purged = 0;
+        for (int i = 0; i + 1 < segments.length && firstTimestamp(segments[i + 1]) < deadline; i++) {
+            if (segments[i].delete()) {
+                purged++;
+            } else {
+                log.warn("删除过期归档文件{}失败", segments[i].getName());
+            }
+        }
+        if (purged > 0) {
+            log.info("删除{}个超过{}天的归档文件", purged, retainDays);
+        }
+        return purged;
+    }
+
+    /**
+     * 按文件顺序把归档中的消息重放到指定stream，保留原消息id，id不递增的消息（重复归档）跳过
+     * 目标stream中已有更大id的消息时会写入失败，因此应重放到一个新的stream
+     * @param targetKey 目标stream
+     * @return 重放的消息数
+     */
+    public long replay(String targetKey) throws IOException {
+        long count = 0;
+        long skipped = 0;
+        RecordId previous = null;
+        for (File segment : segments()) {
+            long remaining = segment.length();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+                while (true) {
+                    byte[] frame = readFrame(in, remaining, segment);
+                    if (frame == null) {
+                        break;
+                    }
+                    remaining -= 4 + frame.length;
+                    for (MapRecord<String, String, String> record : decode(frame, targetKey)) {
+                        if (previous != null && compare(record.getId(), previous) <= 0) {
+                            skipped++;
+                            continue;
+                        }
+                        stringRedisTemplate.opsForStream().add(record);
+                        previous = record.getId();
+                        count++;
+                    }
+                }
+            }
+        }
+        log.info("从归档重放{}条消息到{}，跳过重复消息{}条", count, targetKey, skipped);
+        return count;
+    }
+
+    /**
+     * 当前分段文件：最后一个文件未超过大小上限则继续追加（先截掉残帧），否则新建
+     */
+    private File currentSegment(RecordId firstId) throws IOException {
+        File dir = new File(archiveDir);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("创建归档目录失败：" + dir.getAbsolutePath());
+        }
+        File[] segments = segments();
+        if (segments.length > 0) {
+            File last = segments[segments.length - 1];
+            truncateTornFrame(last);
+            if (last.length() < segmentBytes) {
+                return last;
+            }
+        }
+        //文件名用第一条消息的时间戳，补齐位数保证按文件名排序即按时间排序
+        return new File(dir, SEGMENT_PREFIX + String.format("%0" + TIMESTAMP_DIGITS + "d", firstId.getTimestamp()) + SEGMENT_SUFFIX);
+    }
+
+    private static long firstTimestamp(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * 从后往前找最后一个有完整帧的分段文件，取其最后一帧的最后一条消息id
+     */
+    private RecordId readLastArchivedId() throws IOException {
+        File[] segments = segments();
+        for (int i = segments.length - 1; i >= 0; i--) {
+            try (RandomAccessFile file = new RandomAccessFile(segments[i], "r")) {
+                long[] frame = scan(file);
+                if (frame[1] == 0) {
+                    continue;
+                }
+                byte[] last = new byte[(int) (frame[1] - frame[0] - 4)];
+                file.seek(frame[0] + 4);
+                file.readFully(last);
+                List<MapRecord<String, String, String>> records = decode(last, STREAM_ORDERS_KEY);
+                if (!records.isEmpty()) {
+                    return records.get(records.size() - 1).getId();
+                }
+            }
+        }
+        return null;
+    }
+
+    private File[] segments() {
+        File[] files = new File(archiveDir).listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * 截掉文件末尾不完整（或长度不合法）的帧
+     */
+    private void truncateTornFrame(File segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            long length = file.length();
+            long position = scan(file)[1];
+            if (position < length) {
+                log.warn("归档文件{}末尾有不完整的帧，截断 {} -> {}", segment.getName(), length, position);
+                file.setLength(position);
+            }
+        }
+    }
+
+    /**
+     * 按帧长度扫描文件，遇到不完整或长度不合法的帧停止
+     * @return 最后一个完整帧的起始位置、结束位置，没有完整帧时都为0
+     */
+    private static long[] scan(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        long start = 0;
+        long end = 0;
+        while (end + 4 <= length) {
+            file.seek(end);
+            int frameLength = file.readInt();
+            if (frameLength < 1 || end + 4 + frameLength > length) {
+                break;
+            }
+            start = end;
+            end += 4 + frameLength;
+        }
+        return new long[]{start, end};
+    }
+
+    /**
+     * 读取一帧，帧长度不能超过文件剩余字节数
+     * @param remaining 文件剩余字节数
+     * @return 读到文件末尾或末尾的残帧时返回null
+     */
+    private static byte[] readFrame(DataInputStream in, long remaining, File segment) throws IOException {
+        if (remaining < 4) {
+            return null;
+        }
+        int length = in.readInt();
+        if (length < 1) {
+            throw new IOException("归档文件" + segment.getName() + "损坏，帧长度不合法：" + length);
+        }
+        if (length > remaining - 4) {
+            log.warn("归档文件{}末尾有不完整的帧，忽略", segment.getName());
+            return null;
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    private static byte[] encode(List<MapRecord<String, Object, Object>> records) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(records.size());
+            for (MapRecord<String, Object, Object> record : records) {
+                out.writeUTF(record.getId().getValue());
+                out.writeShort(record.getValue().size());
+                for (Map.Entry<Object, Object> entry : record.getValue().entrySet()) {
+                    out.writeUTF(String.valueOf(entry.getKey()));
+                    out.writeUTF(String.valueOf(entry.getValue()));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static List<MapRecord<String, String, String>> decode(byte[] frame, String targetKey) throws IOException {
+        byte[] block = Arrays.copyOfRange(frame, 1, frame.length);
+        if (frame[0] == FLAG_DEFLATE) {
+            block = inflate(block);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(block))) {
+            int count = in.readInt();
+            List<MapRecord<String, String, String>> records = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                int fields = in.readShort();
+                Map<String, String> values = new LinkedHashMap<>(fields * 2);
+                for (int j = 0; j < fields; j++) {
+                    values.put(in.readUTF(), in.readUTF());
+                }
+                records.add(StreamRecords.newRecord().in(targetKey).withId(RecordId.of(id)).ofMap(values));
+            }
+            return records;
+        }
+    }
+
+    private static int compare(RecordId a, RecordId b) {
+        int c = Long.compare(a.getTimestamp(), b.getTimestamp());
+        return c != 0 ? c : Long.compare(a.getSequence(), b.getSequence());
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new IOException("归档数据不完整");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("归档数据损坏", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+-- 抢占或续约归档所有者租约：没有所有者时抢占，所有者是自己时续约
+-- 键列表: 所有者key
+-- 参数列表: 所有者标识，租约有效期（毫秒）
+local owner = redis.call('get', KEYS[1])
+if(owner == false) then
+    redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[2])
+    return 1
+end
+if(owner == ARGV[1]) then
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return 1
+end
+-- 旧版本写入的所有者没有有效期，补上，所有者不再续约时由其他节点接管
+if(redis.call('pttl', KEYS[1]) == -1) then
+    redis.call('pexpire', KEYS[1], ARGV[2])
+end
+return 0
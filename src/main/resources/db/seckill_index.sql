@@ -0,0 +1,2 @@
+-- 秒杀订单按优惠券统计、按用户游标遍历（对账任务使用），避免全表扫描
+ALTER TABLE tb_voucher_order ADD INDEX idx_voucher_user (voucher_id, user_id);
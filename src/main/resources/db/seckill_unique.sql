@@ -0,0 +1,3 @@
+-- 订单幂等写入（hmdp.seckill.order.write-mode=idempotent）依赖一人一单的唯一约束
+-- 唯一索引仍以voucher_id开头，对账任务按优惠券计数、按用户游标遍历照常走索引，所以直接替换原来的普通索引
+ALTER TABLE tb_voucher_order DROP INDEX idx_voucher_user, ADD UNIQUE INDEX uk_voucher_user (voucher_id, user_id);
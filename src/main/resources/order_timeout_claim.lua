@@ -0,0 +1,13 @@
+-- 认领到期的未支付订单
+-- 键列表: 超时队列zset（member为订单id，score为超时时间戳，毫秒）
+-- 参数列表: 当前时间戳（毫秒），最多认领数量，认领后顺延的时间（毫秒）
+-- 返回值: 认领到的订单id
+-- 认领的订单不直接删除，而是把超时时间顺延，处理完成后再删除；处理节点宕机时，顺延时间到了会被重新认领
+local key = KEYS[1]
+local now = tonumber(ARGV[1])
+local due = redis.call('zrangebyscore', key, '-inf', now, 'LIMIT', 0, tonumber(ARGV[2]))
+local retryAt = now + tonumber(ARGV[3])
+for i = 1, #due do
+    redis.call('zadd', key, retryAt, due[i])
+end
+return due
@@ -0,0 +1,13 @@
+-- 把旧的已下单用户SET中的一批用户原子地迁移到bitmap：SPOP取出并移除，再SETBIT
+-- 与取消订单的SREM/SETBIT 0互斥，不会把刚移除的用户重新写入bitmap
+-- 键列表: 旧的已下单用户SET的key，bitmap的key
+-- 参数列表: 每批数量，分片数（bitmap偏移量 = 用户id / 分片数）
+-- 返回值: 本批迁移的用户数
+-- spop结果不确定，需按命令复制（redis5以上默认如此）
+redis.replicate_commands()
+local userIds = redis.call('spop', KEYS[1], ARGV[1])
+local shards = tonumber(ARGV[2])
+for _, userId in ipairs(userIds) do
+    redis.call('setbit', KEYS[2], math.floor(tonumber(userId) / shards), 1)
+end
+return #userIds
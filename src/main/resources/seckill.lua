@@ -4,25 +4,97 @@
 --- DateTime: 2025-01-27 21:44
 ---
 
--- 参数列表: 优惠券id，用户id，订单orderId
+-- 键列表: 库存key，已下单用户key（SET或bitmap），优惠券信息hash的key（begin、end为活动起止时间戳，毫秒），
+--        旧的已下单用户SET的key（bitmap模式下迁移期间用于去重，SET模式下与第二个key相同），
+--        消息队列key、订单状态key（只在普通模式传入；分片模式的key都在分片的slot里，下单成功后由调用方写入消息队列和订单状态）
+-- 参数列表: 优惠券id，用户id，订单orderId，本分片无货时是否占位（分片库存模式传1），订单状态有效期（毫秒），
+--          去重方式（set/bitmap），bitmap偏移量，bitmap在活动结束后的保留时间（毫秒）
+-- 返回值: 0成功，1库存不足，2重复下单，3活动未开始（或库存尚未预热），4活动已结束，5本分片无货已占位
+-- 脚本中用到了time命令，需按命令复制（redis5以上默认如此）
+-- publish的频道不是key，不受slot限制
+redis.replicate_commands()
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local voucherKey = KEYS[3]
+local legacyOrderKey = KEYS[4]
+local streamKey = KEYS[5]
+local statusKey = KEYS[6]
 local voucherId = ARGV[1]
 local userId = ARGV[2]
 local orderId = ARGV[3]
-local stockKey = "seckill:stock:" .. voucherId
-local orderKey = "seckill:order:" .. voucherId
+local reserveOnEmpty = ARGV[4]
+local statusTtl = ARGV[5]
+local bitmap = ARGV[6] == 'bitmap'
+local offset = ARGV[7]
+local grace = ARGV[8]
+-- 0.判断是否在活动时间内（没有时间信息的老优惠券不校验）
+local window = redis.call('hmget', voucherKey, 'begin', 'end')
+if(window[1] or window[2]) then
+    local t = redis.call('time')
+    local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+    if(window[1] and now < tonumber(window[1])) then
+        return 3
+    end
+    if(window[2] and now > tonumber(window[2])) then
+        return 4
+    end
+end
+-- 用户是否下过单
+local function purchased()
+    if(bitmap) then
+        if(redis.call('getbit', orderKey, offset) == 1) then
+            return true
+        end
+        -- 迁移期间旧SET中的用户也算
+        return redis.call('sismember', legacyOrderKey, userId) == 1
+    end
+    return redis.call('sismember', orderKey, userId) == 1
+end
+-- 记录已下单用户，bitmap在活动结束后保留一段时间自动过期
+local function addPurchaser()
+    if(not bitmap) then
+        redis.call('sadd', orderKey, userId)
+        return
+    end
+    redis.call('setbit', orderKey, offset, 1)
+    if(window[2] and redis.call('pttl', orderKey) == -1) then
+        redis.call('pexpireat', orderKey, tonumber(window[2]) + tonumber(grace))
+    end
+end
 -- 1.判断库存是否充足
 -- 因为redis的get命令得到的字符串，要跟0比较，需用tonumber函数转为数字
-if(tonumber(redis.call('get', stockKey)) <= 0) then
+local stock = tonumber(redis.call('get', stockKey))
+-- 库存还没预热到Redis，视为活动未开始
+if(stock == nil) then
+    return 3
+end
+if(stock <= 0) then
+    -- 分片库存模式：本分片无货时先占住一人一单的名额，再由调用方去兄弟分片扣减库存
+    if(reserveOnEmpty == '1') then
+        if(purchased()) then
+            return 2
+        end
+        addPurchaser()
+        return 5
+    end
     return 1
 end
 -- 2.判断用户是否下过单
-if(redis.call('sismember', orderKey, userId) == 1) then
+if(purchased()) then
     return 2
 end
--- 3.扣减库存
+-- 3.扣减库存，并通知订阅了库存变化的节点（推送给客户端时合并，不是每次都推）
 redis.call('incrby', stockKey, -1)
--- 4.将userId存入当前优惠券的set集合
-redis.call('sadd', orderKey, userId)
+redis.call('publish', 'seckill:channel:stock:' .. voucherId, voucherId)
+-- 4.将userId存入当前优惠券的已下单用户
+addPurchaser()
+-- 分片模式到这里就结束了，消息队列和订单状态由调用方写入
+if(not streamKey) then
+    return 0
+end
 -- 5.将voucherId、userId、orderId发至消息队列    xadd * k1 v1 k2 v2
-redis.call('xadd', 'stream.orders',  '*', 'voucherId', voucherId, 'userId', userId, 'id', orderId)
+redis.call('xadd', streamKey,  '*', 'voucherId', voucherId, 'userId', userId, 'id', orderId)
+-- 6.记录订单状态：排队中，落库后由消费者更新
+redis.call('hset', statusKey, 'status', 'QUEUED', 'userId', userId, 'voucherId', voucherId)
+redis.call('pexpire', statusKey, statusTtl)
 return 0
@@ -0,0 +1,15 @@
+-- 分片库存模式：用户所在分片无货时，到兄弟分片扣减库存（一人一单已在用户所在分片占位）
+-- 只访问兄弟分片的库存key，消息队列和订单状态由调用方在扣减成功后写入（不在这个分片的slot里）
+-- 键列表: 兄弟分片库存key
+-- 参数列表: 优惠券id
+local stockKey = KEYS[1]
+local voucherId = ARGV[1]
+-- 1.判断本分片库存是否充足
+local stock = tonumber(redis.call('get', stockKey))
+if(stock == nil or stock <= 0) then
+    return 1
+end
+-- 2.扣减库存，并通知订阅了库存变化的节点（publish的频道不是key，不受slot限制）
+redis.call('incrby', stockKey, -1)
+redis.call('publish', 'seckill:channel:stock:' .. voucherId, voucherId)
+return 0
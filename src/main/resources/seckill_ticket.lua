@@ -0,0 +1,18 @@
+-- 秒杀排队：发放排队号，同一用户重复领取返回原来的号
+-- 键列表: 排队信息hash（tail已发放号，start开始放行时间，rate每秒放行数），用户排队号hash
+-- 参数列表: 用户id，开始放行时间（毫秒），默认放行速率，key有效期（毫秒）
+local queueKey = KEYS[1]
+local ticketKey = KEYS[2]
+local userId = ARGV[1]
+local pos = redis.call('hget', ticketKey, userId)
+if(not pos) then
+    pos = redis.call('hincrby', queueKey, 'tail', 1)
+    redis.call('hset', ticketKey, userId, pos)
+    redis.call('pexpire', queueKey, ARGV[4])
+    redis.call('pexpire', ticketKey, ARGV[4])
+end
+-- 第一个领号的人确定开始放行时间
+redis.call('hsetnx', queueKey, 'start', ARGV[2])
+local start = redis.call('hget', queueKey, 'start')
+local rate = redis.call('hget', queueKey, 'rate') or ARGV[3]
+return {tonumber(pos), tonumber(start), tonumber(rate)}
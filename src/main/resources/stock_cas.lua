@@ -0,0 +1,8 @@
+-- 比较并设置库存：当前值与期望值一致才写入新值（对账修复时使用，避免覆盖并发扣减）
+-- 键列表: 库存key
+-- 参数列表: 期望值，新值
+if(ARGV[1] == redis.call('get', KEYS[1])) then
+    redis.call('set', KEYS[1], ARGV[2])
+    return 1
+end
+return 0
@@ -0,0 +1,9 @@
+-- 续约workerId，并记录该workerId最后发放的时间戳（重启后重新租到同一个workerId时，时间戳不能回退）
+-- 键列表: workerId租约key，最后时间戳key
+-- 参数列表: 租约标识，租约有效期（毫秒），最后发放的时间戳
+if(ARGV[1] == redis.call('get', KEYS[1])) then
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    redis.call('set', KEYS[2], ARGV[3])
+    return 1
+end
+return 0
@@ -0,0 +1,112 @@
+package com.hmdp.interceptor;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static com.hmdp.constant.RedisConstants.LOGIN_USER_KEY;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+
+class RefreshTokenInterceptorTest {
+
+    private static final String TOKEN = "token-1001";
+
+    private MockMvc mockMvc;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        HashOperations<String, Object, Object> hashOperations = mock(HashOperations.class);
+        doReturn(hashOperations).when(stringRedisTemplate).opsForHash();
+        Map<Object, Object> userMap = new HashMap<>();
+        userMap.put("id", "1001");
+        userMap.put("nickName", "user_1001");
+        when(hashOperations.entries(LOGIN_USER_KEY + TOKEN)).thenReturn(userMap);
+        //MockMvc在当前线程上处理请求，正好模拟同一个Tomcat线程先后处理两个请求
+        mockMvc = MockMvcBuilders.standaloneSetup(new Endpoints())
+                .addInterceptors(new RefreshTokenInterceptor(stringRedisTemplate))
+                .build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        UserHolder.removeUser();
+    }
+
+    @Test
+    void asyncRequestDoesNotLeakUserToNextRequest() throws Exception {
+        MvcResult result = mockMvc.perform(get("/async").header("Authorization", TOKEN))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        //异步请求开始后原线程上已经没有用户
+        assertThat(UserHolder.getUser()).isNull();
+        mockMvc.perform(asyncDispatch(result)).andExpect(content().string("1001"));
+
+        mockMvc.perform(get("/me")).andExpect(content().string("anonymous"));
+    }
+
+    @Test
+    void sseRequestDoesNotLeakUserToNextRequest() throws Exception {
+        mockMvc.perform(get("/stream").header("Authorization", TOKEN))
+                .andExpect(request().asyncStarted());
+        //SSE连接一直保持，原线程上同样不能留下用户
+        assertThat(UserHolder.getUser()).isNull();
+
+        mockMvc.perform(get("/me")).andExpect(content().string("anonymous"));
+    }
+
+    @Test
+    void requestWithoutTokenNeverInheritsLeftoverUser() throws Exception {
+        UserDTO leftover = new UserDTO();
+        leftover.setId(1001L);
+        UserHolder.saveUser(leftover);
+
+        mockMvc.perform(get("/me")).andExpect(content().string("anonymous"));
+    }
+
+    @RestController
+    static class Endpoints {
+
+        @GetMapping("/async")
+        public CompletableFuture<String> async() {
+            return CompletableFuture.completedFuture(currentUser());
+        }
+
+        @GetMapping("/stream")
+        public SseEmitter stream() {
+            return new SseEmitter();
+        }
+
+        @GetMapping("/me")
+        public String me() {
+            return currentUser();
+        }
+
+        private static String currentUser() {
+            UserDTO user = UserHolder.getUser();
+            return user == null ? "anonymous" : String.valueOf(user.getId());
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.extension.conditions.update.UpdateChainWrapper;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.AnnotationTransactionAttributeSource;
+import org.springframework.transaction.interceptor.TransactionInterceptor;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.constant.SystemConstants.ORDER_STATUS_CANCELLED;
+import static com.hmdp.constant.SystemConstants.ORDER_STATUS_UNPAID;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class VoucherOrderServiceImplTest {
+
+    private static final long VOUCHER_ID = 7L;
+
+    //模拟数据库中的秒杀券库存
+    private final Map<Long, Integer> stocks = new HashMap<>();
+    //执行成功的库存SQL
+    private final List<String> stockUpdates = new ArrayList<>();
+    private VoucherOrderMapper voucherOrderMapper;
+    private VoucherOrderServiceImpl service;
+    private PlatformTransactionManager transactionManager;
+    private SimpleTransactionStatus transactionStatus;
+
+    @BeforeEach
+    void setUp() {
+        voucherOrderMapper = mock(VoucherOrderMapper.class);
+        ISeckillVoucherService seckillVoucherService = mock(ISeckillVoucherService.class);
+        when(seckillVoucherService.update()).thenAnswer(invocation -> stockUpdate());
+        service = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(service, "baseMapper", voucherOrderMapper);
+        ReflectionTestUtils.setField(service, "seckillVoucherService", seckillVoucherService);
+    }
+
+    @Test
+    void createOrdersDeductsStockOncePerVoucher() {
+        stocks.put(VOUCHER_ID, 10);
+        List<VoucherOrder> orders = Arrays.asList(order(1, 101), order(2, 102), order(3, 103));
+
+        assertThat(service.createOrders(orders)).isEmpty();
+
+        assertThat(stockUpdates).containsExactly("stock = stock - 3");
+        assertThat(stocks.get(VOUCHER_ID)).isEqualTo(7);
+        assertThat(inserted()).extracting(VoucherOrder::getId).containsExactly(1L, 2L, 3L);
+    }
+
+    @Test
+    void createOrdersFallsBackToSingleDeductionWhenStockIsShort() {
+        stocks.put(VOUCHER_ID, 2);
+        List<VoucherOrder> orders = Arrays.asList(order(1, 101), order(2, 102), order(3, 103));
+
+        Map<Long, String> failed = service.createOrders(orders);
+
+        //整体扣减3失败，逐单扣减前两单成功，第三单库存不足
+        assertThat(stockUpdates).containsExactly("stock = stock - 1", "stock = stock - 1");
+        assertThat(stocks.get(VOUCHER_ID)).isZero();
+        assertThat(failed).containsOnlyKeys(3L).containsValue("库存不足");
+        assertThat(inserted()).extracting(VoucherOrder::getId).containsExactly(1L, 2L);
+    }
+
+    @Test
+    void createOrdersRejectsDuplicatesAndReplacesCancelledOrders() {
+        stocks.put(VOUCHER_ID, 10);
+        //用户101已有未支付订单，用户102的订单已取消
+        when(voucherOrderMapper.selectList(any())).thenReturn(Arrays.asList(
+                existing(101, ORDER_STATUS_UNPAID), existing(102, ORDER_STATUS_CANCELLED)));
+        List<VoucherOrder> orders = Arrays.asList(order(1, 101), order(2, 102), order(3, 103), order(4, 103));
+
+        Map<Long, String> failed = service.createOrders(orders);
+
+        //批内重复（用户103的第二单）和数据库中已有的订单都是重复下单
+        assertThat(failed).containsOnlyKeys(1L, 4L).containsValues("重复下单");
+        assertThat(stockUpdates).containsExactly("stock = stock - 2");
+        verify(voucherOrderMapper).deleteCancelled(orders.get(1));
+        assertThat(inserted()).extracting(VoucherOrder::getId).containsExactly(2L, 3L);
+    }
+
+    @Test
+    void createOrdersInsertsNothingWhenSoldOut() {
+        stocks.put(VOUCHER_ID, 0);
+
+        Map<Long, String> failed = service.createOrders(Collections.singletonList(order(1, 101)));
+
+        assertThat(failed).containsOnlyKeys(1L);
+        verify(voucherOrderMapper, never()).insertBatch(any());
+    }
+
+    @Test
+    void createOrderIdempotentInsertsThenDeductsStock() {
+        stocks.put(VOUCHER_ID, 1);
+        VoucherOrder order = order(1, 101);
+        when(voucherOrderMapper.insertIgnore(order)).thenReturn(1);
+
+        assertThat(transactional().createOrderIdempotent(order)).isNull();
+
+        assertThat(stocks.get(VOUCHER_ID)).isZero();
+        assertThat(transactionStatus.isRollbackOnly()).isFalse();
+    }
+
+    @Test
+    void createOrderIdempotentRejectsDuplicateWithoutTouchingStock() {
+        stocks.put(VOUCHER_ID, 1);
+        VoucherOrder order = order(1, 101);
+        //唯一索引挡住，且不是已取消的订单
+        when(voucherOrderMapper.insertIgnore(order)).thenReturn(0);
+        when(voucherOrderMapper.deleteCancelled(order)).thenReturn(0);
+
+        assertThat(transactional().createOrderIdempotent(order)).isEqualTo("重复下单");
+
+        assertThat(stockUpdates).isEmpty();
+        assertThat(stocks.get(VOUCHER_ID)).isEqualTo(1);
+    }
+
+    @Test
+    void createOrderIdempotentReplacesCancelledOrder() {
+        stocks.put(VOUCHER_ID, 1);
+        VoucherOrder order = order(1, 101);
+        when(voucherOrderMapper.insertIgnore(order)).thenReturn(0, 1);
+        when(voucherOrderMapper.deleteCancelled(order)).thenReturn(1);
+
+        assertThat(transactional().createOrderIdempotent(order)).isNull();
+
+        assertThat(stocks.get(VOUCHER_ID)).isZero();
+    }
+
+    @Test
+    void createOrderIdempotentRollsBackInsertWhenSoldOut() {
+        stocks.put(VOUCHER_ID, 0);
+        VoucherOrder order = order(1, 101);
+        when(voucherOrderMapper.insertIgnore(order)).thenReturn(1);
+
+        assertThat(transactional().createOrderIdempotent(order)).isEqualTo("库存不足");
+
+        //刚插入的订单随事务回滚撤销
+        assertThat(transactionStatus.isRollbackOnly()).isTrue();
+        verify(transactionManager).commit(transactionStatus);
+    }
+
+    /**
+     * 带事务拦截器的代理，createOrderIdempotent 库存不足时通过 TransactionAspectSupport 标记回滚
+     */
+    private VoucherOrderServiceImpl transactional() {
+        transactionManager = mock(PlatformTransactionManager.class);
+        transactionStatus = new SimpleTransactionStatus();
+        when(transactionManager.getTransaction(any())).thenReturn(transactionStatus);
+        ProxyFactory factory = new ProxyFactory(service);
+        factory.setProxyTargetClass(true);
+        factory.addAdvice(new TransactionInterceptor(transactionManager, new AnnotationTransactionAttributeSource()));
+        return (VoucherOrderServiceImpl) factory.getProxy();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<VoucherOrder> inserted() {
+        ArgumentCaptor<List<VoucherOrder>> captor = ArgumentCaptor.forClass(List.class);
+        verify(voucherOrderMapper).insertBatch(captor.capture());
+        return captor.getValue();
+    }
+
+    /**
+     * 模拟 seckillVoucherService.update().setSql("stock = stock ± k").eq("voucher_id", id).gt/ge("stock", n).update()
+     */
+    private UpdateChainWrapper<?> stockUpdate() {
+        String[] sql = new String[1];
+        Long[] voucherId = new Long[1];
+        int[] min = {Integer.MIN_VALUE};
+        return mock(UpdateChainWrapper.class, invocation -> {
+            Object[] args = invocation.getArguments();
+            Object last = args.length == 0 ? null : args[args.length - 1];
+            switch (invocation.getMethod().getName()) {
+                case "setSql":
+                    sql[0] = (String) last;
+                    return invocation.getMock();
+                case "eq":
+                    voucherId[0] = (Long) last;
+                    return invocation.getMock();
+                case "gt":
+                    min[0] = ((Number) last).intValue() + 1;
+                    return invocation.getMock();
+                case "ge":
+                    min[0] = ((Number) last).intValue();
+                    return invocation.getMock();
+                case "update":
+                    int stock = stocks.getOrDefault(voucherId[0], 0);
+                    if (stock < min[0]) {
+                        return false;
+                    }
+                    String[] parts = sql[0].split(" ");
+                    int delta = Integer.parseInt(parts[parts.length - 1]);
+                    stocks.put(voucherId[0], "-".equals(parts[parts.length - 2]) ? stock - delta : stock + delta);
+                    stockUpdates.add(sql[0]);
+                    return true;
+                default:
+                    return invocation.getMethod().getReturnType().isInstance(invocation.getMock())
+                            ? invocation.getMock() : RETURNS_DEFAULTS.answer(invocation);
+            }
+        });
+    }
+
+    private static VoucherOrder order(long id, long userId) {
+        return new VoucherOrder().setId(id).setUserId(userId).setVoucherId(VOUCHER_ID);
+    }
+
+    private static VoucherOrder existing(long userId, int status) {
+        return new VoucherOrder().setUserId(userId).setVoucherId(VOUCHER_ID).setStatus(status);
+    }
+}
@@ -0,0 +1,112 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CacheClientTest {
+
+    private static final String PREFIX = "cache:shop:";
+
+    //模拟Redis中的缓存
+    private final Map<String, byte[]> store = new ConcurrentHashMap<>();
+    private CacheCodecs cacheCodecs;
+    private CacheClient cacheClient;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        RedisConnection connection = mock(RedisConnection.class);
+        when(connection.get(any())).thenAnswer(invocation -> store.get(key(invocation.getArgument(0))));
+        when(connection.set(any(), any(), any(Expiration.class), any(RedisStringCommands.SetOption.class))).thenAnswer(invocation -> {
+            store.put(key(invocation.getArgument(0)), invocation.getArgument(1));
+            return true;
+        });
+        when(stringRedisTemplate.execute(any(RedisCallback.class))).thenAnswer(invocation ->
+                ((RedisCallback<?>) invocation.getArgument(0)).doInRedis(connection));
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.setIfAbsent(anyString(), anyString(), anyLong(), eq(TimeUnit.SECONDS))).thenReturn(true);
+
+        cacheCodecs = new CacheCodecs();
+        ReflectionTestUtils.setField(cacheCodecs, "defaultCodec", "json");
+        ReflectionTestUtils.setField(cacheCodecs, "prefixCodecs", new String[0]);
+        ReflectionTestUtils.setField(cacheCodecs, "compressThreshold", 0);
+        ReflectionTestUtils.invokeMethod(cacheCodecs, "init");
+
+        cacheClient = new CacheClient(stringRedisTemplate);
+        ReflectionTestUtils.setField(cacheClient, "cacheCodecs", cacheCodecs);
+        ReflectionTestUtils.setField(cacheClient, "refreshAheadEnabled", true);
+        ReflectionTestUtils.setField(cacheClient, "maxTrackedKeys", 1);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void expiredUntrackedKeyIsRefreshedWhenTrackingIsFull() throws InterruptedException {
+        LocalDateTime now = LocalDateTime.now();
+        store.put(PREFIX + 1, cacheCodecs.encode(PREFIX + 1, shop(1L, "103茶餐厅"), now.plusMinutes(30)));
+        store.put(PREFIX + 2, cacheCodecs.encode(PREFIX + 2, shop(2L, "旧名称"), now.minusMinutes(1)));
+        Function<Long, Shop> dbFallback = mock(Function.class);
+        when(dbFallback.apply(2L)).thenReturn(shop(2L, "新名称"));
+
+        //店铺1占满了统计数量
+        assertThat(query(1L, dbFallback).getName()).isEqualTo("103茶餐厅");
+        Map<String, ?> hotKeys = (Map<String, ?>) ReflectionTestUtils.getField(cacheClient, "hotKeys");
+        assertThat(hotKeys).containsOnlyKeys(PREFIX + 1);
+
+        //店铺2没有被统计，已过期时先返回旧数据，同时异步刷新
+        assertThat(query(2L, dbFallback).getName()).isEqualTo("旧名称");
+        assertThat(hotKeys).containsOnlyKeys(PREFIX + 1);
+        verify(dbFallback, timeout(5000)).apply(2L);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!"新名称".equals(((Shop) cached(2L).getData()).getName()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        RedisData refreshed = cached(2L);
+        assertThat(((Shop) refreshed.getData()).getName()).isEqualTo("新名称");
+        assertThat(refreshed.getExpireTime()).isAfter(now);
+        verify(dbFallback, never()).apply(1L);
+    }
+
+    private Shop query(Long id, Function<Long, Shop> dbFallback) {
+        return cacheClient.queryWithRefreshAhead(PREFIX, id, Shop.class, dbFallback, 30L, TimeUnit.MINUTES);
+    }
+
+    private RedisData cached(Long id) {
+        return cacheCodecs.decodeWithExpire(store.get(PREFIX + id), Shop.class);
+    }
+
+    private static String key(byte[] key) {
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private static Shop shop(Long id, String name) {
+        return new Shop().setId(id).setName(name);
+    }
+}
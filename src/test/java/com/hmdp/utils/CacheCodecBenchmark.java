@@ -0,0 +1,109 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  缓存编解码基准测试：店铺（Shop）和探店笔记（Blog）在 json / binary 两种编码、压缩与不压缩下的编码、解码耗时
+ *  运行 main 方法，每种组合的编码后字节数在开始时打印出来
+ *  结果：尚未在固定的基准机器上运行过，这里还没有可引用的数据；开启 binary 或压缩前先运行一遍，把每种组合的
+ *  编码后字节数和 encode/decode 平均耗时（ns/op）补充到这里，再决定前缀配置。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheCodecBenchmark {
+
+    private static final String SHOP_KEY = "cache:shop:1";
+    private static final String BLOG_KEY = "cache:blog:1";
+
+    @Param({"json", "binary"})
+    private String codec;
+    //压缩阈值，0为不压缩，1为全部压缩
+    @Param({"0", "1"})
+    private int compressThreshold;
+
+    private CacheCodecs cacheCodecs;
+    private Shop shop;
+    private Blog blog;
+    private byte[] shopBytes;
+    private byte[] blogBytes;
+
+    @Setup
+    public void setup() {
+        cacheCodecs = new CacheCodecs();
+        ReflectionTestUtils.setField(cacheCodecs, "defaultCodec", codec);
+        ReflectionTestUtils.setField(cacheCodecs, "prefixCodecs", new String[0]);
+        ReflectionTestUtils.setField(cacheCodecs, "compressThreshold", compressThreshold);
+        ReflectionTestUtils.invokeMethod(cacheCodecs, "init");
+        shop = new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg,https://qcloud.dpfile.com/pc/IOf6VX3qaBgFXFVgp75w-KKJmWZjFc8GXDU8g9bQC6YGCpAmG00QbfT4vCCBj7njuzFvxlbkWx5uwqY2qcjixFEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vmIU_8ZGOT1OjpJmLxG6urQ.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192).setY(30.316078).setAvgPrice(80L).setSold(4215).setComments(3035).setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        blog = new Blog().setId(1L).setShopId(4L).setUserId(2L).setIcon("/imgs/blogs/blog1.jpg").setName("可可今天不吃肉")
+                .setIsLike(false).setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩")
+                .setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg")
+                .setContent(StrUtil.repeat("生活就是一半烟火·一半诗意<br>手执烟火谋生活·心怀诗意以谋爱·<br>当然<br>"
+                        + "男朋友给不了的浪漫要学会自己给🍒<br>无法重来的一生·尽量快乐.<br><br>", 8))
+                .setLiked(1).setComments(104)
+                .setCreateTime(LocalDateTime.of(2021, 12, 28, 19, 50, 1))
+                .setUpdateTime(LocalDateTime.of(2022, 3, 10, 14, 26, 34));
+        shopBytes = cacheCodecs.encode(SHOP_KEY, shop);
+        blogBytes = cacheCodecs.encode(BLOG_KEY, blog);
+        System.out.printf("%ncodec=%s, compressThreshold=%d, shop=%d bytes, blog=%d bytes%n",
+                codec, compressThreshold, shopBytes.length, blogBytes.length);
+    }
+
+    @Benchmark
+    public byte[] encodeShop() {
+        return cacheCodecs.encode(SHOP_KEY, shop);
+    }
+
+    @Benchmark
+    public Shop decodeShop() {
+        return cacheCodecs.decode(shopBytes, Shop.class);
+    }
+
+    @Benchmark
+    public byte[] encodeBlog() {
+        return cacheCodecs.encode(BLOG_KEY, blog);
+    }
+
+    @Benchmark
+    public Blog decodeBlog() {
+        return cacheCodecs.decode(blogBytes, Blog.class);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CacheCodecBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,143 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CacheCodecsTest {
+
+    private static final String KEY = "cache:shop:1";
+
+    @ParameterizedTest
+    @CsvSource({"json, 0", "json, 1", "binary, 0", "binary, 1"})
+    void roundTrip(String codec, int compressThreshold) {
+        CacheCodecs codecs = codecs(codec, compressThreshold);
+        Shop shop = shop();
+        assertThat(codecs.decode(codecs.encode(KEY, shop), Shop.class)).isEqualTo(shop);
+
+        LocalDateTime expireTime = LocalDateTime.of(2026, 10, 18, 12, 30, 15);
+        RedisData redisData = codecs.decodeWithExpire(codecs.encode(KEY, shop, expireTime), Shop.class);
+        assertThat(redisData.getData()).isEqualTo(shop);
+        assertThat(redisData.getExpireTime()).isEqualTo(expireTime);
+    }
+
+    @ParameterizedTest
+    @CsvSource({"json, 0", "json, 1", "binary, 0", "binary, 1"})
+    void listRoundTrip(String codec, int compressThreshold) {
+        CacheCodecs codecs = codecs(codec, compressThreshold);
+        List<Shop> shops = Arrays.asList(shop(), shop().setId(2L).setName("蔡馬洪涛烤肉·老北京铜锅涮羊肉"));
+        assertThat(codecs.decodeList(codecs.encodeList(KEY, shops), Shop.class)).isEqualTo(shops);
+        assertThat(codecs.decodeList(codecs.encodeList(KEY, Collections.emptyList()), Shop.class)).isEmpty();
+    }
+
+    @Test
+    void headerByteIsOutsideJsonRange() {
+        assertThat(codecs("json", 0).encode(KEY, shop())[0]).isEqualTo((byte) '{');
+        for (String codec : new String[]{"json", "binary"}) {
+            byte[] bytes = codecs(codec, 1).encode(KEY, shop(), LocalDateTime.now());
+            assertThat(bytes[0] & 0x80).isNotZero();
+        }
+    }
+
+    @Test
+    void legacyJsonIsDecoded() {
+        Shop shop = shop();
+        byte[] plain = JSONUtil.toJsonStr(shop).getBytes(StandardCharsets.UTF_8);
+        assertThat(codecs("binary", 1).decode(plain, Shop.class)).isEqualTo(shop);
+
+        RedisData legacy = new RedisData();
+        LocalDateTime expireTime = LocalDateTime.of(2026, 10, 18, 12, 30, 15);
+        legacy.setData(shop);
+        legacy.setExpireTime(expireTime);
+        RedisData decoded = codecs("binary", 1).decodeWithExpire(JSONUtil.toJsonStr(legacy).getBytes(StandardCharsets.UTF_8), Shop.class);
+        assertThat(decoded.getData()).isEqualTo(shop);
+        assertThat(decoded.getExpireTime()).isEqualTo(expireTime);
+
+        byte[] legacyList = JSONUtil.toJsonStr(Collections.singletonList(shop)).getBytes(StandardCharsets.UTF_8);
+        assertThat(codecs("json", 0).decodeList(legacyList, Shop.class)).containsExactly(shop);
+    }
+
+    /**
+     * 第一个字节是引号、数字等的旧数据不会被当作头部，也不是JSON对象，按未命中处理
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"\"103茶餐厅\"", "1", "12345678901", "[1,2]", "{\"name\":", "not json"})
+    void undecodableLegacyValueIsMiss(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        assertThat(codecs("json", 0).decode(bytes, Shop.class)).isNull();
+        assertThat(codecs("binary", 1).decodeWithExpire(bytes, Shop.class)).isNull();
+    }
+
+    @Test
+    void unknownHeaderIsMiss() {
+        CacheCodecs codecs = codecs("binary", 0);
+        //保留位
+        assertThat(codecs.decode(new byte[]{(byte) 0xC2, 0, 0, 0, 0}, Shop.class)).isNull();
+        //不认识的编解码方式
+        assertThat(codecs.decode(new byte[]{(byte) 0x83, 0, 0, 0, 0}, Shop.class)).isNull();
+        //带逻辑过期时间但长度不够
+        assertThat(codecs.decodeWithExpire(new byte[]{(byte) 0xA2, 0, 0}, Shop.class)).isNull();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {Integer.MAX_VALUE, -1, 1 << 20})
+    void corruptStringLengthIsMiss(int length) {
+        CacheCodecs codecs = codecs("binary", 0);
+        Shop shop = shop();
+        byte[] bytes = codecs.encode(KEY, shop);
+        //店铺名前4个字节是它的长度
+        int index = indexOf(bytes, shop.getName().getBytes(StandardCharsets.UTF_8));
+        ByteBuffer.wrap(bytes).putInt(index - 4, length);
+        assertThat(codecs.decode(bytes, Shop.class)).isNull();
+    }
+
+    @Test
+    void truncatedBinaryIsMiss() {
+        CacheCodecs codecs = codecs("binary", 0);
+        byte[] bytes = codecs.encode(KEY, shop());
+        assertThat(codecs.decode(Arrays.copyOf(bytes, bytes.length / 2), Shop.class)).isNull();
+        byte[] list = codecs.encodeList(KEY, Collections.singletonList(shop()));
+        assertThat(codecs.decodeList(Arrays.copyOf(list, list.length - 1), Shop.class)).isNull();
+    }
+
+    private static CacheCodecs codecs(String codec, int compressThreshold) {
+        CacheCodecs cacheCodecs = new CacheCodecs();
+        ReflectionTestUtils.setField(cacheCodecs, "defaultCodec", codec);
+        ReflectionTestUtils.setField(cacheCodecs, "prefixCodecs", new String[0]);
+        ReflectionTestUtils.setField(cacheCodecs, "compressThreshold", compressThreshold);
+        ReflectionTestUtils.invokeMethod(cacheCodecs, "init");
+        return cacheCodecs;
+    }
+
+    private static Shop shop() {
+        return new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192).setY(30.316078).setAvgPrice(80L).setSold(4215).setComments(3035).setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+
+    private static int indexOf(byte[] bytes, byte[] target) {
+        for (int i = 0; i + target.length <= bytes.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + target.length), target)) {
+                return i;
+            }
+        }
+        throw new AssertionError("not found");
+    }
+}
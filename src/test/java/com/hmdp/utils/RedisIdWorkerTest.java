@@ -0,0 +1,115 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RedisIdWorkerTest {
+
+    private static final int STEP = 10;
+
+    //模拟Redis中的计数器
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private ValueOperations<String, String> valueOperations;
+    private StringRedisTemplate stringRedisTemplate;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        valueOperations = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.increment(anyString())).thenAnswer(invocation ->
+                counters.computeIfAbsent(invocation.getArgument(0), k -> new AtomicLong()).incrementAndGet());
+        when(valueOperations.increment(anyString(), anyLong())).thenAnswer(invocation ->
+                counters.computeIfAbsent(invocation.getArgument(0), k -> new AtomicLong()).addAndGet(invocation.getArgument(1)));
+    }
+
+    @Test
+    void segmentModeLeasesOncePerStep() {
+        RedisIdWorker worker = worker(true);
+        List<Long> sequences = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            sequences.add(sequence(worker.nextId("order")));
+        }
+        //单线程下号段首尾相接，序列号连续
+        assertThat(sequences).isEqualTo(LongStream.rangeClosed(1, 100).boxed().collect(Collectors.toList()));
+        //10个号段，加上最多一个预取的号段
+        verify(valueOperations, atMost(100 / STEP + 1)).increment(anyString(), anyLong());
+        verify(valueOperations, never()).increment(anyString());
+    }
+
+    @Test
+    void segmentModeIdsAreUniqueAcrossThreadsAndNodes() throws Exception {
+        //两个节点共用同一个Redis计数器
+        RedisIdWorker[] nodes = {worker(true), worker(true)};
+        int threads = 8;
+        int perThread = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<Long>>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            RedisIdWorker node = nodes[t % nodes.length];
+            futures.add(executor.submit(() -> {
+                start.await();
+                List<Long> ids = new ArrayList<>(perThread);
+                for (int i = 0; i < perThread; i++) {
+                    ids.add(node.nextId("order"));
+                }
+                return ids;
+            }));
+        }
+        start.countDown();
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        for (Future<List<Long>> future : futures) {
+            ids.addAll(future.get(30, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        assertThat(ids).hasSize(threads * perThread);
+    }
+
+    @Test
+    void withoutSegmentEveryIdIncrementsRedis() {
+        RedisIdWorker worker = worker(false);
+        assertThat(sequence(worker.nextId("order"))).isEqualTo(1);
+        assertThat(sequence(worker.nextId("order"))).isEqualTo(2);
+        verify(valueOperations, never()).increment(anyString(), anyLong());
+    }
+
+    private RedisIdWorker worker(boolean segmentEnabled) {
+        RedisIdWorker worker = new RedisIdWorker(stringRedisTemplate);
+        ReflectionTestUtils.setField(worker, "segmentEnabled", segmentEnabled);
+        ReflectionTestUtils.setField(worker, "segmentStep", STEP);
+        ReflectionTestUtils.setField(worker, "prefetchRatio", 0.2);
+        return worker;
+    }
+
+    private static long sequence(long id) {
+        return id & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,124 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.constant.RedisConstants.ID_WORKER_LAST_KEY;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SnowflakeIdWorkerTest {
+
+    private static final long EPOCH_MILLIS = RedisIdWorker.BEGIN_TIMESTAMP * 1000;
+
+    private final AtomicLong now = new AtomicLong();
+    private ValueOperations<String, String> valueOperations;
+    private SnowflakeIdWorker worker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        valueOperations = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.setIfAbsent(anyString(), anyString(), anyLong(), eq(TimeUnit.MILLISECONDS))).thenReturn(true);
+        now.set(LocalDateTime.of(2026, 10, 18, 12, 0).toInstant(ZoneOffset.UTC).toEpochMilli());
+        worker = new SnowflakeIdWorker();
+        worker.clock = now::get;
+        ReflectionTestUtils.setField(worker, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(worker, "leaseTtlSeconds", 30L);
+    }
+
+    @Test
+    void idsAreAboveEveryRedisIdWorkerId() {
+        lease();
+        long id = worker.nextId("order");
+        //第62位是类型位，符号位不用
+        assertThat(id & (1L << 62)).isNotZero();
+        assertThat(id).isPositive();
+        //同一秒内RedisIdWorker能生成的最大ID（RedisIdWorker把本地时间当作UTC计算秒数）
+        long localSecond = LocalDateTime.ofInstant(Instant.ofEpochMilli(now.get()), ZoneId.systemDefault()).toEpochSecond(ZoneOffset.UTC);
+        long maxRedisIdSameSecond = (localSecond - RedisIdWorker.BEGIN_TIMESTAMP) << 32 | 0xFFFFFFFFL;
+        assertThat(id).isGreaterThan(maxRedisIdSameSecond);
+        //RedisIdWorker在2055年底能生成的最大ID也比现在的雪花ID小
+        long redisSecond = LocalDateTime.of(2055, 12, 31, 23, 59, 59).toEpochSecond(ZoneOffset.UTC) - RedisIdWorker.BEGIN_TIMESTAMP;
+        assertThat(id).isGreaterThan(redisSecond << 32 | 0xFFFFFFFFL);
+    }
+
+    @Test
+    void layoutHoldsTimestampWorkerAndSequence() {
+        lease();
+        long first = worker.nextId("order");
+        long second = worker.nextId("order");
+        assertThat(timestamp(first)).isEqualTo(now.get() - EPOCH_MILLIS);
+        assertThat(workerId(first)).isZero();
+        assertThat(second).isEqualTo(first + 1);
+        now.addAndGet(1);
+        long third = worker.nextId("order");
+        assertThat(timestamp(third)).isEqualTo(now.get() - EPOCH_MILLIS);
+        assertThat(sequence(third)).isZero();
+    }
+
+    @Test
+    void sequenceOverflowCarriesIntoNextMillisecond() {
+        lease();
+        long last = 0;
+        for (int i = 0; i < 5000; i++) {
+            long id = worker.nextId("order");
+            assertThat(id).isGreaterThan(last);
+            last = id;
+        }
+        assertThat(timestamp(last)).isGreaterThan(now.get() - EPOCH_MILLIS);
+    }
+
+    @Test
+    void clockRollbackKeepsIdsIncreasing() {
+        lease();
+        long before = worker.nextId("order");
+        now.addAndGet(-5000);
+        long after = worker.nextId("order");
+        assertThat(after).isGreaterThan(before);
+        assertThat(timestamp(after)).isEqualTo(timestamp(before));
+    }
+
+    @Test
+    void leaseStartsAfterLastIssuedTimestampWhenClockIsBehind() {
+        //上次租用该workerId的节点已经发放到比当前时钟晚10秒的时间戳
+        long lastIssued = now.get() - EPOCH_MILLIS + 10_000;
+        when(valueOperations.get(ID_WORKER_LAST_KEY + 0)).thenReturn(String.valueOf(lastIssued));
+        lease();
+        long id = worker.nextId("order");
+        //加上一个续约周期（ttl / 3）的余量
+        assertThat(timestamp(id)).isEqualTo(lastIssued + 10_000);
+    }
+
+    private void lease() {
+        ReflectionTestUtils.invokeMethod(worker, "lease");
+    }
+
+    private static long timestamp(long id) {
+        return (id & ~SnowflakeIdWorker.TYPE_BIT) >>> 22;
+    }
+
+    private static long workerId(long id) {
+        return (id >>> 12) & 1023;
+    }
+
+    private static long sequence(long id) {
+        return id & 4095;
+    }
+}
@@ -0,0 +1,178 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class StreamArchiveTest {
+
+    @TempDir
+    Path dir;
+
+    private StringRedisTemplate stringRedisTemplate;
+    private StreamOperations<String, Object, Object> streamOperations;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        streamOperations = mock(StreamOperations.class);
+        when(stringRedisTemplate.opsForStream()).thenReturn(streamOperations);
+    }
+
+    @Test
+    void appendThenReplayKeepsIdsAndFields() throws IOException {
+        StreamArchive archive = archive(true);
+        assertThat(archive.append(records(1, 2, 3))).isEqualTo(3);
+        assertThat(archive.append(records(4, 5))).isEqualTo(2);
+
+        List<MapRecord<String, String, String>> replayed = replay(archive, 5);
+        assertThat(ids(replayed)).containsExactly("1-0", "2-0", "3-0", "4-0", "5-0");
+        assertThat(replayed.get(0).getStream()).isEqualTo("stream.orders.replay");
+        assertThat(replayed.get(0).getValue()).containsEntry("userId", "1001").containsEntry("voucherId", "7");
+    }
+
+    @Test
+    void tornFrameIsTruncatedBeforeNextAppend() throws IOException {
+        StreamArchive archive = archive(false);
+        archive.append(records(1, 2));
+        File segment = onlySegment();
+        long complete = segment.length();
+        //模拟写到一半宕机：帧长度声明100字节，实际只写了3字节
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(segment, true))) {
+            out.writeInt(100);
+            out.write(new byte[]{1, 2, 3});
+        }
+
+        //残帧在重放时被忽略
+        assertThat(ids(replay(archive, 2))).containsExactly("1-0", "2-0");
+
+        archive.append(records(3));
+        assertThat(segment.length()).isGreaterThan(complete);
+        assertThat(ids(replay(archive(false), 3))).containsExactly("1-0", "2-0", "3-0");
+    }
+
+    @Test
+    void recordsArchivedBeforeRestartAreSkipped() throws IOException {
+        archive(true).append(records(1, 2, 3));
+        //追加落盘后、XTRIM之前宕机，重启后同一批消息连同新消息再次归档
+        StreamArchive restarted = archive(true);
+        assertThat(restarted.append(records(2, 3, 4))).isEqualTo(1);
+        assertThat(restarted.append(records(3, 4))).isZero();
+
+        assertThat(ids(replay(restarted, 4))).containsExactly("1-0", "2-0", "3-0", "4-0");
+    }
+
+    @Test
+    void replaySkipsDuplicatedSegments() throws IOException {
+        StreamArchive archive = archive(true);
+        archive.append(records(1, 2));
+        File segment = onlySegment();
+        Files.copy(segment.toPath(), dir.resolve("segment-000000000000009.log"));
+        archive.append(records(3));
+
+        assertThat(ids(replay(archive, 3))).containsExactly("1-0", "2-0", "3-0");
+    }
+
+    @Test
+    void invalidFrameLengthIsRejected() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(dir.resolve("segment-000000000000001.log").toFile()))) {
+            out.writeInt(-5);
+            out.write(new byte[16]);
+        }
+        StreamArchive archive = archive(true);
+        assertThatThrownBy(() -> archive.replay("stream.orders.replay")).isInstanceOf(IOException.class);
+        verify(streamOperations, never()).add(any(MapRecord.class));
+
+        //追加前把不合法的帧当作残帧截掉
+        archive.append(records(2));
+        assertThat(ids(replay(archive, 1))).containsExactly("2-0");
+    }
+
+    @Test
+    void purgeDeletesOnlySegmentsOlderThanRetention() throws IOException {
+        long now = System.currentTimeMillis();
+        long old = now - TimeUnit.DAYS.toMillis(40);
+        long recent = now - TimeUnit.DAYS.toMillis(10);
+        StreamArchive archive = archive(true);
+        ReflectionTestUtils.setField(archive, "segmentBytes", 1L);
+        archive.append(records(old));
+        archive.append(records(old + 1));
+        archive.append(records(recent));
+        archive.append(records(now));
+        assertThat(dir.toFile().list()).hasSize(4);
+
+        //第二个分段的消息早于下一个分段的第一条消息（10天前），仍在保留期内
+        assertThat(archive.purgeExpired()).isEqualTo(1);
+        assertThat(ids(replay(archive, 3))).containsExactly((old + 1) + "-0", recent + "-0", now + "-0");
+    }
+
+    private StreamArchive archive(boolean compress) {
+        StreamArchive archive = new StreamArchive();
+        ReflectionTestUtils.setField(archive, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(archive, "archiveDir", dir.toString());
+        ReflectionTestUtils.setField(archive, "segmentBytes", 64L * 1024 * 1024);
+        ReflectionTestUtils.setField(archive, "compress", compress);
+        ReflectionTestUtils.setField(archive, "retainDays", 30);
+        return archive;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private List<MapRecord<String, String, String>> replay(StreamArchive archive, long expected) throws IOException {
+        clearInvocations(streamOperations);
+        assertThat(archive.replay("stream.orders.replay")).isEqualTo(expected);
+        ArgumentCaptor<MapRecord> captor = ArgumentCaptor.forClass(MapRecord.class);
+        verify(streamOperations, times((int) expected)).add(captor.capture());
+        return (List) captor.getAllValues();
+    }
+
+    private File onlySegment() {
+        File[] files = dir.toFile().listFiles();
+        assertThat(files).hasSize(1);
+        return files[0];
+    }
+
+    private static List<MapRecord<String, Object, Object>> records(long... timestamps) {
+        return Arrays.stream(timestamps).mapToObj(ts -> {
+            Map<Object, Object> values = new LinkedHashMap<>();
+            values.put("userId", "1001");
+            values.put("voucherId", "7");
+            values.put("id", String.valueOf(ts));
+            return StreamRecords.newRecord().in("stream.orders").withId(RecordId.of(ts, 0)).ofMap(values);
+        }).collect(Collectors.toList());
+    }
+
+    private static List<String> ids(List<MapRecord<String, String, String>> records) {
+        return records.stream().map(record -> record.getId().getValue()).collect(Collectors.toList());
+    }
+}